@@ -0,0 +1,332 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.benchmark;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Vector;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Environment;
+import android.os.SystemClock;
+import de.shandschuh.sparserss.Strings;
+import de.shandschuh.sparserss.provider.FeedData;
+import de.shandschuh.sparserss.provider.FeedDataContentProvider;
+import de.shandschuh.sparserss.service.FetcherService;
+
+/**
+ * Measures the refresh of feeds end to end: temporary feeds that point to a local
+ * {@link BenchmarkServer} are refreshed by the {@link FetcherService} and their fetch
+ * log is evaluated. The feeds live in a separate database that is deleted afterwards,
+ * their validators and entries are cleared before each run so that every run parses.
+ * 
+ * Build and install it with <code>make benchmark</code>, run it with
+ * <pre>adb shell am instrument -w [-e name value ...] de.shandschuh.sparserss.benchmark/.BenchmarkInstrumentation</pre>
+ * The arguments are feeds, entries, entrysize (characters), encoding, latency (ms), gzip,
+ * redirects and errors (percentages of the feeds), runs and timeout (ms). The argument
+ * record takes comma separated urls whose responses are stored in the directory given
+ * by dir; replay=true then uses the stored responses instead of the generated feeds.
+ * Allocations are counted for the whole process.
+ */
+public class BenchmarkInstrumentation extends Instrumentation {
+	private static final String ARG_FEEDS = "feeds";
+	
+	private static final String ARG_ENTRIES = "entries";
+	
+	private static final String ARG_ENTRYSIZE = "entrysize";
+	
+	private static final String ARG_ENCODING = "encoding";
+	
+	private static final String ARG_LATENCY = "latency";
+	
+	private static final String ARG_GZIP = "gzip";
+	
+	private static final String ARG_REDIRECTS = "redirects";
+	
+	private static final String ARG_ERRORS = "errors";
+	
+	private static final String ARG_RUNS = "runs";
+	
+	private static final String ARG_TIMEOUT = "timeout";
+	
+	private static final String ARG_RECORD = "record";
+	
+	private static final String ARG_REPLAY = "replay";
+	
+	private static final String ARG_DIR = "dir";
+	
+	private static final String DEFAULT_DIR = Environment.getExternalStorageDirectory()+"/sparserss/benchmark";
+	
+	private static final long POLL_INTERVAL = 250;
+	
+	private static final String DATABASE = "sparserss_benchmark.db";
+	
+	private static final String[] PROJECTION_FETCHLOG = new String[] {FeedData.FetchLogColumns.CONNECTTIME, FeedData.FetchLogColumns.FIRSTBYTETIME, FeedData.FetchLogColumns.DOWNLOADTIME, FeedData.FetchLogColumns.PARSETIME, FeedData.FetchLogColumns.ENTRIES, FeedData.FetchLogColumns.NEWENTRIES, FeedData.FetchLogColumns.BYTES, FeedData.FetchLogColumns.ERROR};
+	
+	private static final String[] PROJECTION_COUNT = new String[] {"COUNT(*)"};
+	
+	private Bundle arguments;
+	
+	@Override
+	public void onCreate(Bundle arguments) {
+		super.onCreate(arguments);
+		this.arguments = arguments != null ? arguments : new Bundle();
+		start();
+	}
+	
+	@Override
+	public void onStart() {
+		Bundle results = new Bundle();
+		
+		int resultCode = Activity.RESULT_OK;
+		
+		try {
+			String record = arguments.getString(ARG_RECORD);
+			
+			results.putString(REPORT_KEY_STREAMRESULT, record != null ? record(record) : benchmark());
+		} catch (Exception e) {
+			results.putString(REPORT_KEY_STREAMRESULT, new StringBuilder("Benchmark failed: ").append(e).append('\n').toString());
+			resultCode = Activity.RESULT_CANCELED;
+		}
+		finish(resultCode, results);
+	}
+	
+	private String record(String urls) {
+		File directory = new File(getString(ARG_DIR, DEFAULT_DIR));
+		
+		StringBuilder builder = new StringBuilder();
+		
+		for (String url : urls.split(Strings.COMMA)) {
+			try {
+				FeedCorpus.record(url.trim(), directory);
+				builder.append("Recorded ").append(url).append('\n');
+			} catch (Exception e) {
+				builder.append("Could not record ").append(url).append(": ").append(e).append('\n');
+			}
+		}
+		return builder.toString();
+	}
+	
+	private String benchmark() throws Exception {
+		Context context = getTargetContext();
+		
+		FeedCorpus corpus = new FeedCorpus();
+		
+		if (Boolean.parseBoolean(arguments.getString(ARG_REPLAY))) {
+			corpus.load(new File(getString(ARG_DIR, DEFAULT_DIR)));
+		} else {
+			corpus.generate(getInt(ARG_FEEDS, 30), getInt(ARG_ENTRIES, 20), getInt(ARG_ENTRYSIZE, 500), getString(ARG_ENCODING, "UTF-8"), getInt(ARG_REDIRECTS, 10), getInt(ARG_ERRORS, 5));
+		}
+		corpus.setLatency(getInt(ARG_LATENCY, 50));
+		corpus.setGzip(!"false".equals(arguments.getString(ARG_GZIP)));
+		
+		if (!FeedDataContentProvider.useDatabase(DATABASE)) {
+			throw new IllegalStateException("No feed provider in this process");
+		}
+		
+		BenchmarkServer server = new BenchmarkServer(corpus);
+		
+		Vector<String> feedIds = new Vector<String>();
+		
+		try {
+			server.start();
+			Vector<String> paths = corpus.getFeedPaths();
+			
+			StringBuilder idsBuilder = new StringBuilder();
+			
+			for (int n = 0, i = paths.size(); n < i; n++) {
+				ContentValues values = new ContentValues();
+				
+				values.put(FeedData.FeedColumns.URL, server.getBaseUrl()+paths.get(n));
+				values.put(FeedData.FeedColumns.NAME, "Benchmark "+paths.get(n));
+				
+				String feedId = context.getContentResolver().insert(FeedData.FeedColumns.CONTENT_URI, values).getLastPathSegment();
+				
+				feedIds.add(feedId);
+				if (idsBuilder.length() > 0) {
+					idsBuilder.append(Strings.COMMA);
+				}
+				idsBuilder.append(feedId);
+			}
+			
+			int runs = Math.max(1, getInt(ARG_RUNS, 1));
+			
+			long timeout = getInt(ARG_TIMEOUT, 300000);
+			
+			StringBuilder report = new StringBuilder("Feeds: ").append(feedIds.size()).append(", server: ").append(server.getBaseUrl()).append('\n');
+			
+			for (int run = 0; run < runs; run++) {
+				reset(context, feedIds);
+				
+				long runDate = System.currentTimeMillis();
+				
+				Debug.resetGlobalAllocSize();
+				Debug.resetGlobalAllocCount();
+				Debug.startAllocCounting();
+				
+				long startTime = SystemClock.elapsedRealtime();
+				
+				context.startService(new Intent(context, FetcherService.class).putExtra(Strings.FEEDIDS, idsBuilder.toString()).putExtra(Strings.SETTINGS_OVERRIDEWIFIONLY, true));
+				
+				boolean complete = waitForFetchLogs(context, feedIds, runDate, timeout);
+				
+				long wallTime = Math.max(1, SystemClock.elapsedRealtime() - startTime);
+				
+				Debug.stopAllocCounting();
+				report.append("Run ").append(run + 1).append(complete ? Strings.EMPTY : " (timed out)").append(": ");
+				appendStatistics(report, context, feedIds, runDate, wallTime, Debug.getGlobalAllocSize(), Debug.getGlobalAllocCount());
+			}
+			return report.append("Requests served: ").append(server.getRequestCount()).append('\n').toString();
+		} finally {
+			server.stop();
+			for (int n = 0, i = feedIds.size(); n < i; n++) {
+				context.getContentResolver().delete(FeedData.FeedColumns.CONTENT_URI(feedIds.get(n)), null, null);
+			}
+			FeedDataContentProvider.useDatabase(null);
+			context.deleteDatabase(DATABASE);
+		}
+	}
+	
+	/**
+	 * Clears the validators and entries of the feeds, otherwise the following run
+	 * would only measure the not modified responses and the skipped bodies.
+	 */
+	private static void reset(Context context, Vector<String> feedIds) {
+		ContentValues values = new ContentValues();
+		
+		values.putNull(FeedData.FeedColumns.ETAG);
+		values.putNull(FeedData.FeedColumns.LASTMODIFIED);
+		values.putNull(FeedData.FeedColumns.BODYDIGEST);
+		for (int n = 0, i = feedIds.size(); n < i; n++) {
+			context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(feedIds.get(n)), values, null, null);
+			context.getContentResolver().delete(FeedData.EntryColumns.CONTENT_URI(feedIds.get(n)), null, null);
+		}
+	}
+	
+	/**
+	 * Waits until every feed has logged a refresh attempt since the given date.
+	 */
+	private static boolean waitForFetchLogs(Context context, Vector<String> feedIds, long date, long timeout) throws InterruptedException {
+		long endTime = SystemClock.elapsedRealtime() + timeout;
+		
+		String selection = new StringBuilder(FeedData.FetchLogColumns.DATE).append(">=").append(date).toString();
+		
+		int done = 0;
+		
+		while (SystemClock.elapsedRealtime() < endTime) {
+			while (done < feedIds.size()) {
+				Cursor cursor = context.getContentResolver().query(FeedData.FeedColumns.FETCHLOG_CONTENT_URI(feedIds.get(done)), PROJECTION_COUNT, selection, null, null);
+				
+				boolean logged = cursor.moveToFirst() && cursor.getInt(0) > 0;
+				
+				cursor.close();
+				if (logged) {
+					done++;
+				} else {
+					break;
+				}
+			}
+			if (done == feedIds.size()) {
+				return true;
+			}
+			Thread.sleep(POLL_INTERVAL);
+		}
+		return false;
+	}
+	
+	private static void appendStatistics(StringBuilder report, Context context, Vector<String> feedIds, long date, long wallTime, int allocSize, int allocCount) {
+		String selection = new StringBuilder(FeedData.FetchLogColumns.DATE).append(">=").append(date).toString();
+		
+		Vector<Long> latencies = new Vector<Long>(feedIds.size());
+		
+		int attempts = 0;
+		
+		int failures = 0;
+		
+		long entries = 0;
+		
+		long newEntries = 0;
+		
+		long bytes = 0;
+		
+		for (int n = 0, i = feedIds.size(); n < i; n++) {
+			Cursor cursor = context.getContentResolver().query(FeedData.FeedColumns.FETCHLOG_CONTENT_URI(feedIds.get(n)), PROJECTION_FETCHLOG, selection, null, null);
+			
+			while (cursor.moveToNext()) {
+				latencies.add(cursor.getLong(0) + cursor.getLong(1) + cursor.getLong(2) + cursor.getLong(3));
+				attempts++;
+				entries += cursor.getInt(4);
+				newEntries += cursor.getInt(5);
+				bytes += cursor.getLong(6);
+				if (!cursor.isNull(7)) {
+					failures++;
+				}
+			}
+			cursor.close();
+		}
+		
+		long[] sortedLatencies = new long[attempts];
+		
+		for (int n = 0; n < attempts; n++) {
+			sortedLatencies[n] = latencies.get(n);
+		}
+		Arrays.sort(sortedLatencies);
+		report.append(attempts).append(" attempts (").append(failures).append(" failed) in ").append(wallTime).append(" ms\n");
+		report.append("  feeds/s: ").append(attempts * 1000f / wallTime).append(", entries/s: ").append(entries * 1000f / wallTime).append(" (").append(entries).append(" parsed, ").append(newEntries).append(" new)\n");
+		report.append("  latency p50: ").append(getPercentile(sortedLatencies, 50)).append(" ms, p99: ").append(getPercentile(sortedLatencies, 99)).append(" ms\n");
+		report.append("  transferred: ").append(bytes).append(" bytes, allocated: ").append(allocSize).append(" bytes in ").append(allocCount).append(" objects");
+		if (attempts > 0) {
+			report.append(" (").append(allocSize / attempts).append(" bytes per feed)");
+		}
+		report.append('\n');
+	}
+	
+	private static long getPercentile(long[] sortedValues, int percentile) {
+		return sortedValues.length > 0 ? sortedValues[(sortedValues.length - 1) * percentile / 100] : 0;
+	}
+	
+	private String getString(String name, String defaultValue) {
+		String value = arguments.getString(name);
+		
+		return value != null ? value : defaultValue;
+	}
+	
+	private int getInt(String name, int defaultValue) {
+		try {
+			return Integer.parseInt(arguments.getString(name));
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+	
+}
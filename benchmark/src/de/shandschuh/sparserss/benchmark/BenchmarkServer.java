@@ -0,0 +1,208 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A minimal http/1.1 server on the loopback interface that answers with the
+ * responses of a {@link FeedCorpus}. Connections are kept alive such that the
+ * connection pool of the app is measured as well.
+ */
+public class BenchmarkServer implements Runnable {
+	private static final String LOOPBACK = "127.0.0.1";
+	
+	private static final String CRLF = "\r\n";
+	
+	private static final String KEY_ACCEPTENCODING = "accept-encoding:";
+	
+	private static final String KEY_CONNECTION = "connection:";
+	
+	private static final String GZIP = "gzip";
+	
+	private static final String CLOSE = "close";
+	
+	private static final int MAX_LINELENGTH = 8192;
+	
+	private FeedCorpus corpus;
+	
+	private ServerSocket serverSocket;
+	
+	private ExecutorService executor;
+	
+	private volatile boolean stopped;
+	
+	private volatile int requestCount;
+	
+	public BenchmarkServer(FeedCorpus corpus) throws IOException {
+		this.corpus = corpus;
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName(LOOPBACK));
+		executor = Executors.newCachedThreadPool();
+	}
+	
+	public void start() {
+		new Thread(this).start();
+	}
+	
+	public void stop() {
+		stopped = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			
+		}
+		executor.shutdownNow();
+	}
+	
+	public String getBaseUrl() {
+		return new StringBuilder("http://").append(LOOPBACK).append(':').append(serverSocket.getLocalPort()).toString();
+	}
+	
+	public int getRequestCount() {
+		return requestCount;
+	}
+	
+	public void run() {
+		while (!stopped) {
+			try {
+				final Socket socket = serverSocket.accept();
+				
+				executor.execute(new Runnable() {
+					public void run() {
+						serve(socket);
+					}
+				});
+			} catch (IOException e) {
+				// the socket has been closed
+			}
+		}
+	}
+	
+	private void serve(Socket socket) {
+		try {
+			InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+			
+			OutputStream outputStream = new BufferedOutputStream(socket.getOutputStream());
+			
+			boolean keepAlive = true;
+			
+			while (keepAlive && !stopped) {
+				String requestLine = readLine(inputStream);
+				
+				if (requestLine == null || requestLine.length() == 0) {
+					break;
+				}
+				
+				boolean acceptsGzip = false;
+				
+				String line;
+				
+				while ((line = readLine(inputStream)) != null && line.length() > 0) {
+					String lowerCaseLine = line.toLowerCase();
+					
+					if (lowerCaseLine.startsWith(KEY_ACCEPTENCODING)) {
+						acceptsGzip = lowerCaseLine.indexOf(GZIP) > -1;
+					} else if (lowerCaseLine.startsWith(KEY_CONNECTION)) {
+						keepAlive = lowerCaseLine.indexOf(CLOSE) == -1;
+					}
+				}
+				requestCount++;
+				
+				int start = requestLine.indexOf(' ');
+				
+				int end = requestLine.indexOf(' ', start + 1);
+				
+				String path = start > 0 && end > start ? requestLine.substring(start + 1, end) : requestLine;
+				
+				if (corpus.getLatency() > 0) {
+					try {
+						Thread.sleep(corpus.getLatency());
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+				writeResponse(outputStream, corpus.getResponse(path), acceptsGzip && corpus.isGzip(), keepAlive);
+			}
+		} catch (IOException e) {
+			// the client has gone
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				
+			}
+		}
+	}
+	
+	private void writeResponse(OutputStream outputStream, FeedCorpus.Response response, boolean gzip, boolean keepAlive) throws IOException {
+		int status = response != null ? response.status : 404;
+		
+		byte[] body = response == null ? new byte[0] : (gzip && response.body.length > 0 ? response.getGzippedBody() : response.body);
+		
+		StringBuilder builder = new StringBuilder("HTTP/1.1 ").append(status).append(status < 300 ? " OK" : (status < 400 ? " Moved" : " Error")).append(CRLF);
+		
+		if (response != null && response.contentType != null) {
+			builder.append("Content-Type: ").append(response.contentType).append(CRLF);
+		}
+		if (response != null && response.location != null) {
+			builder.append("Location: ").append(getBaseUrl()).append(response.location).append(CRLF); // older clients need absolute locations
+		}
+		if (gzip && body.length > 0) {
+			builder.append("Content-Encoding: gzip").append(CRLF);
+		}
+		builder.append("Content-Length: ").append(body.length).append(CRLF);
+		builder.append("Connection: ").append(keepAlive ? "keep-alive" : CLOSE).append(CRLF).append(CRLF);
+		outputStream.write(builder.toString().getBytes("US-ASCII"));
+		outputStream.write(body);
+		outputStream.flush();
+	}
+	
+	/**
+	 * @return the line without its line break or null at the end of the stream
+	 */
+	private static String readLine(InputStream inputStream) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		
+		int c;
+		
+		while ((c = inputStream.read()) != -1 && c != '\n') {
+			if (c != '\r' && builder.length() < MAX_LINELENGTH) {
+				builder.append((char) c);
+			}
+		}
+		return c == -1 && builder.length() == 0 ? null : builder.toString();
+	}
+	
+}
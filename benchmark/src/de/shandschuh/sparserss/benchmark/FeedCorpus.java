@@ -0,0 +1,330 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.Vector;
+import java.util.zip.GZIPOutputStream;
+
+import de.shandschuh.sparserss.provider.FeedData;
+
+/**
+ * The responses the benchmark server answers with. The corpus is either generated,
+ * alternating between rss 2.0, atom and rdf feeds, or it consists of responses that
+ * have been recorded from real feeds before.
+ */
+public class FeedCorpus {
+	public static final String PATH_FEED = "/feed/";
+	
+	public static final String PATH_REDIRECT = "/redirect/";
+	
+	public static final String PATH_REPLAY = "/replay/";
+	
+	private static final String LOREM = "Lorem ipsum dolor sit amet, consectetur adipisici elit, sed eiusmod tempor incidunt ut labore et dolore magna aliqua. \u00c4rger \u00fcber \u00f6de Stra\u00dfen. ";
+	
+	private static final String RSS_DATEFORMAT = "EEE, dd MMM yyyy HH:mm:ss Z";
+	
+	private static final String ISO_DATEFORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+	
+	private static final long ENTRY_DISTANCE = 3600000;
+	
+	/** The generated feeds, all feeds the server knows are in this map */
+	private HashMap<String, Response> responses;
+	
+	/** The paths of the feeds in the order they are added to the database */
+	private Vector<String> feedPaths;
+	
+	private int latency;
+	
+	private boolean gzip;
+	
+	public FeedCorpus() {
+		responses = new HashMap<String, Response>();
+		feedPaths = new Vector<String>();
+	}
+	
+	/**
+	 * Generates the synthetic feeds.
+	 * 
+	 * @param entryCount the entries per feed
+	 * @param entrySize the approximate size of an entry text in characters
+	 * @param encoding the charset of the feeds
+	 * @param redirectPercentage the share of feeds that are only reached via a redirect
+	 * @param errorPercentage the share of feeds that answer with a server error
+	 */
+	public void generate(int feedCount, int entryCount, int entrySize, String encoding, int redirectPercentage, int errorPercentage) throws IOException {
+		Random random = new Random(feedCount); // the same parameters give the same corpus
+		
+		long now = System.currentTimeMillis();
+		
+		for (int n = 0; n < feedCount; n++) {
+			String path = PATH_FEED+n;
+			
+			int chance = random.nextInt(100);
+			
+			if (chance < errorPercentage) {
+				responses.put(path, new Response(HttpURLConnection.HTTP_INTERNAL_ERROR, null, null, new byte[0]));
+				feedPaths.add(path);
+			} else {
+				String body = null;
+				
+				String contentType = null;
+				
+				switch (n % 3) {
+					case 0: {
+						body = createRss(n, entryCount, entrySize, encoding, now);
+						contentType = "application/rss+xml";
+						break;
+					}
+					case 1: {
+						body = createAtom(n, entryCount, entrySize, encoding, now);
+						contentType = "application/atom+xml";
+						break;
+					}
+					default: {
+						body = createRdf(n, entryCount, entrySize, encoding, now);
+						contentType = "application/rdf+xml";
+						break;
+					}
+				}
+				responses.put(path, new Response(HttpURLConnection.HTTP_OK, new StringBuilder(contentType).append("; charset=").append(encoding).toString(), null, body.getBytes(encoding)));
+				if (chance < errorPercentage + redirectPercentage) {
+					String redirectPath = PATH_REDIRECT+n;
+					
+					responses.put(redirectPath, new Response(HttpURLConnection.HTTP_MOVED_PERM, null, path, new byte[0]));
+					feedPaths.add(redirectPath);
+				} else {
+					feedPaths.add(path);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds all responses that have been recorded into the directory.
+	 */
+	public void load(File directory) throws IOException {
+		File[] files = directory.listFiles();
+		
+		for (int n = 0, i = files != null ? files.length : 0; n < i; n++) {
+			DataInputStream inputStream = new DataInputStream(new FileInputStream(files[n]));
+			
+			try {
+				String contentType = inputStream.readUTF();
+				
+				byte[] body = new byte[inputStream.readInt()];
+				
+				inputStream.readFully(body);
+				
+				String path = PATH_REPLAY+files[n].getName();
+				
+				responses.put(path, new Response(HttpURLConnection.HTTP_OK, contentType.length() > 0 ? contentType : null, null, body));
+				feedPaths.add(path);
+			} finally {
+				inputStream.close();
+			}
+		}
+	}
+	
+	/**
+	 * Stores the current response of the url into the directory such that it can be replayed later.
+	 */
+	public static void record(String url, File directory) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		
+		try {
+			InputStream inputStream = connection.getInputStream();
+			
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			
+			byte[] buffer = new byte[4096];
+			
+			int n;
+			
+			while ((n = inputStream.read(buffer)) > 0) {
+				body.write(buffer, 0, n);
+			}
+			inputStream.close();
+			directory.mkdirs();
+			
+			DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(new File(directory, FeedData.getUrlHash(url))));
+			
+			try {
+				String contentType = connection.getContentType();
+				
+				outputStream.writeUTF(contentType != null ? contentType : "");
+				outputStream.writeInt(body.size());
+				body.writeTo(outputStream);
+			} finally {
+				outputStream.close();
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+	
+	/**
+	 * @param latency the time in milliseconds the server waits before every response
+	 */
+	public void setLatency(int latency) {
+		this.latency = latency;
+	}
+	
+	public int getLatency() {
+		return latency;
+	}
+	
+	/**
+	 * @param gzip whether the bodies are compressed for clients that accept it
+	 */
+	public void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+	
+	public boolean isGzip() {
+		return gzip;
+	}
+	
+	public Vector<String> getFeedPaths() {
+		return feedPaths;
+	}
+	
+	public Response getResponse(String path) {
+		return responses.get(path);
+	}
+	
+	private static String createRss(int feed, int entryCount, int entrySize, String encoding, long now) {
+		SimpleDateFormat dateFormat = new SimpleDateFormat(RSS_DATEFORMAT, Locale.US);
+		
+		StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"").append(encoding).append("\"?>\n<rss version=\"2.0\"><channel><title>Benchmark feed ").append(feed).append("</title><link>http://localhost/").append(feed).append("</link>");
+		
+		for (int n = 0; n < entryCount; n++) {
+			builder.append("<item><title>Entry ").append(n).append(" of feed ").append(feed).append("</title><link>http://localhost/").append(feed).append('/').append(n).append("</link><guid>").append(feed).append('-').append(n).append("</guid><pubDate>").append(dateFormat.format(now - n * ENTRY_DISTANCE)).append("</pubDate><description>");
+			appendText(builder, entrySize, true);
+			builder.append("</description></item>");
+		}
+		return builder.append("</channel></rss>").toString();
+	}
+	
+	private static String createAtom(int feed, int entryCount, int entrySize, String encoding, long now) {
+		SimpleDateFormat dateFormat = createIsoDateFormat();
+		
+		StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"").append(encoding).append("\"?>\n<feed xmlns=\"http://www.w3.org/2005/Atom\"><title>Benchmark feed ").append(feed).append("</title><updated>").append(dateFormat.format(now)).append("</updated>");
+		
+		for (int n = 0; n < entryCount; n++) {
+			builder.append("<entry><title>Entry ").append(n).append(" of feed ").append(feed).append("</title><link href=\"http://localhost/").append(feed).append('/').append(n).append("\"/><id>").append(feed).append('-').append(n).append("</id><updated>").append(dateFormat.format(now - n * ENTRY_DISTANCE)).append("</updated><content type=\"html\">");
+			appendText(builder, entrySize, true);
+			builder.append("</content></entry>");
+		}
+		return builder.append("</feed>").toString();
+	}
+	
+	private static String createRdf(int feed, int entryCount, int entrySize, String encoding, long now) {
+		SimpleDateFormat dateFormat = createIsoDateFormat();
+		
+		StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"").append(encoding).append("\"?>\n<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" xmlns=\"http://purl.org/rss/1.0/\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><channel><title>Benchmark feed ").append(feed).append("</title></channel>");
+		
+		for (int n = 0; n < entryCount; n++) {
+			builder.append("<item><title>Entry ").append(n).append(" of feed ").append(feed).append("</title><link>http://localhost/").append(feed).append('/').append(n).append("</link><dc:date>").append(dateFormat.format(now - n * ENTRY_DISTANCE)).append("</dc:date><description>");
+			appendText(builder, entrySize, false);
+			builder.append("</description></item>");
+		}
+		return builder.append("</rdf:RDF>").toString();
+	}
+	
+	private static SimpleDateFormat createIsoDateFormat() {
+		SimpleDateFormat dateFormat = new SimpleDateFormat(ISO_DATEFORMAT, Locale.US);
+		
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return dateFormat;
+	}
+	
+	/**
+	 * Appends escaped html with a paragraph and an entity every few sentences, such that
+	 * the unescaping is part of the measurement.
+	 */
+	private static void appendText(StringBuilder builder, int size, boolean markup) {
+		int start = builder.length();
+		
+		while (builder.length() - start < size) {
+			if (markup) {
+				builder.append("&lt;p&gt;").append(LOREM).append("&amp;amp; more&lt;/p&gt;");
+			} else {
+				builder.append(LOREM);
+			}
+		}
+	}
+	
+	/**
+	 * A response of the server; the compressed body is created on demand.
+	 */
+	public static class Response {
+		int status;
+		
+		String contentType;
+		
+		String location;
+		
+		byte[] body;
+		
+		private byte[] gzippedBody;
+		
+		public Response(int status, String contentType, String location, byte[] body) {
+			this.status = status;
+			this.contentType = contentType;
+			this.location = location;
+			this.body = body;
+		}
+		
+		synchronized byte[] getGzippedBody() throws IOException {
+			if (gzippedBody == null) {
+				ByteArrayOutputStream outputStream = new ByteArrayOutputStream(body.length / 4 + 64);
+				
+				GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream);
+				
+				gzipOutputStream.write(body);
+				gzipOutputStream.close();
+				gzippedBody = outputStream.toByteArray();
+			}
+			return gzippedBody;
+		}
+	}
+	
+}
@@ -233,7 +233,6 @@ public class EntriesListActivity extends ListActivity implements Requeryable {
 						String selection = Strings.READDATE_GREATERZERO+Strings.DB_AND+" ("+Strings.DB_EXCUDEFAVORITE+")";
 						
 						getContentResolver().delete(uri, selection, null);
-						FeedData.deletePicturesOfFeed(EntriesListActivity.this, uri, selection);
 						runOnUiThread(new Runnable() {
 							public void run() {
 								entriesListAdapter.getCursor().requery();
@@ -285,7 +284,6 @@ public class EntriesListActivity extends ListActivity implements Requeryable {
 				long id = ((AdapterView.AdapterContextMenuInfo) item.getMenuInfo()).id;
 				
 				getContentResolver().delete(ContentUris.withAppendedId(uri, id), null, null);
-				FeedData.deletePicturesOfEntry(Long.toString(id));
 				entriesListAdapter.getCursor().requery(); // we have no other choice
 				break;
 			}
@@ -25,7 +25,13 @@
 
 package de.shandschuh.sparserss;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.Date;
+import java.util.HashMap;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -69,7 +75,9 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ViewFlipper;
+import de.shandschuh.sparserss.handler.HtmlSanitizer;
 import de.shandschuh.sparserss.provider.FeedData;
+import de.shandschuh.sparserss.provider.FeedDataContentProvider;
 
 public class EntryActivity extends Activity {
 	/*
@@ -118,6 +126,10 @@ public class EntryActivity extends Activity {
 	
 	private static final String BRACKET = " (";
 	
+	private static final String[] IMAGE_PROJECTION = new String[] {FeedData.ImageColumns.URL, FeedData.ImageColumns.FILE};
+	
+	private static final String IMAGE_STORED = FeedData.ImageColumns.FILE+" IS NOT NULL";
+	
 	private int titlePosition;
 	
 	private int datePosition;
@@ -136,6 +148,8 @@ public class EntryActivity extends Activity {
 	
 	private int authorPosition;
 	
+	private int contentFilePosition;
+	
 	private String _id;
 	
 	private String _nextId;
@@ -243,6 +257,7 @@ public class EntryActivity extends Activity {
 		readDatePosition = entryCursor.getColumnIndex(FeedData.EntryColumns.READDATE);
 		enclosurePosition = entryCursor.getColumnIndex(FeedData.EntryColumns.ENCLOSURE);
 		authorPosition = entryCursor.getColumnIndex(FeedData.EntryColumns.AUTHOR);
+		contentFilePosition = entryCursor.getColumnIndex(FeedData.EntryColumns.CONTENTFILE);
 		
 		entryCursor.close();
 		if (RSSOverview.notificationManager == null) {
@@ -396,6 +411,13 @@ public class EntryActivity extends Activity {
 		if (entryCursor.moveToFirst()) {
 			String abstractText = entryCursor.getString(abstractPosition);
 			
+			if (!entryCursor.isNull(contentFilePosition)) {
+				String fullText = readContentFile(entryCursor.getString(contentFilePosition));
+				
+				if (fullText != null) {
+					abstractText = fullText; // the stored abstract is cut off
+				}
+			}
 			if (entryCursor.isNull(readDatePosition)) {
 				getContentResolver().update(uri, values, new StringBuilder(FeedData.EntryColumns.READDATE).append(Strings.DB_ISNULL).toString(), null);
 			}
@@ -492,10 +514,12 @@ public class EntryActivity extends Activity {
 				
 				if (localPictures) {
 					abstractText = abstractText.replace(Strings.IMAGEID_REPLACEMENT, _id+Strings.IMAGEFILE_IDSEPARATOR);
+				} else {
+					abstractText = replaceStoredImages(abstractText);
 				}
 
 				if (preferences.getBoolean(Strings.SETTINGS_DISABLEPICTURES, false)) {
-					abstractText = abstractText.replaceAll(Strings.HTML_IMG_REGEX, Strings.EMPTY);
+					abstractText = HtmlSanitizer.replaceImages(abstractText, null, true);
 					webView.getSettings().setBlockNetworkImage(true);
 				} else {
 					if (webView.getSettings().getBlockNetworkImage()) {
@@ -730,10 +754,7 @@ public class EntryActivity extends Activity {
 				break;
 			}
 			case R.id.menu_delete: {
-				getContentResolver().delete(uri, null, null);
-				if (localPictures) {
-					FeedData.deletePicturesOfEntry(_id);
-				}
+				getContentResolver().delete(uri, null, null); // this deletes the images as well
 				
 				if (nextButton.isEnabled()) {
 					nextButton.performClick();
@@ -794,4 +815,58 @@ public class EntryActivity extends Activity {
 		}
 	}
 
+	/**
+	 * Points the images of the entry that are stored already to their files. All
+	 * other images keep their original url.
+	 */
+	private String replaceStoredImages(String abstractText) {
+		Cursor imageCursor = getContentResolver().query(FeedData.EntryColumns.IMAGES_CONTENT_URI(_id), IMAGE_PROJECTION, IMAGE_STORED, null, null);
+		
+		HashMap<String, String> urls = new HashMap<String, String>();
+		
+		while (imageCursor.moveToNext()) {
+			String url = imageCursor.getString(0);
+			
+			String file = imageCursor.getString(1);
+			
+			if (url != null && new File(FeedDataContentProvider.IMAGEFOLDER_FILE, file).exists()) {
+				urls.put(url, new StringBuilder(Strings.FILEURL).append(FeedDataContentProvider.IMAGEFOLDER).append(file).toString());
+			}
+		}
+		imageCursor.close();
+		return urls.isEmpty() ? abstractText : HtmlSanitizer.replaceImages(abstractText, urls, false);
+	}
+	
+	/**
+	 * @return the sanitized full abstract or null if the file cannot be read
+	 */
+	private static String readContentFile(String fileName) {
+		Reader reader = null;
+		
+		try {
+			reader = new InputStreamReader(new FileInputStream(new File(FeedDataContentProvider.CONTENTFOLDER_FILE, fileName)), UTF8);
+			
+			StringBuilder builder = new StringBuilder();
+			
+			char[] buffer = new char[4096];
+			
+			int count;
+			
+			while ((count = reader.read(buffer)) > -1) {
+				builder.append(buffer, 0, count);
+			}
+			return new HtmlSanitizer().sanitize(builder, null);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					
+				}
+			}
+		}
+	}
+	
 }
@@ -35,6 +35,7 @@ import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.TextView;
 import android.widget.Toast;
 import de.shandschuh.sparserss.provider.FeedData;
 
@@ -43,6 +44,8 @@ public class FeedConfigActivity extends Activity {
 	
 	private static final String[] PROJECTION = new String[] {FeedData.FeedColumns.NAME, FeedData.FeedColumns.URL, FeedData.FeedColumns.WIFIONLY, FeedData.FeedColumns.IMPOSE_USERAGENT, FeedData.FeedColumns.HIDE_READ};
 	
+	private static final String[] PROJECTION_FETCHSTATISTICS = new String[] {"COUNT(*)", "COUNT("+FeedData.FetchLogColumns.ERROR+")", "AVG("+FeedData.FetchLogColumns.CONNECTTIME+"+"+FeedData.FetchLogColumns.FIRSTBYTETIME+"+"+FeedData.FetchLogColumns.DOWNLOADTIME+")", "AVG("+FeedData.FetchLogColumns.CONNECTTIME+")", "AVG("+FeedData.FetchLogColumns.FIRSTBYTETIME+")", "AVG("+FeedData.FetchLogColumns.PARSETIME+")", "AVG("+FeedData.FetchLogColumns.BYTES+")", "AVG("+FeedData.FetchLogColumns.UNCOMPRESSEDBYTES+")", "SUM("+FeedData.FetchLogColumns.NEWENTRIES+")", "SUM("+FeedData.FetchLogColumns.ENTRIES+")"};
+	
 	private EditText nameEditText;
 	
 	private EditText urlEditText;
@@ -124,6 +127,7 @@ public class FeedConfigActivity extends Activity {
 					finish();
 				}
 			}
+			showFetchStatistics(intent.getData().getLastPathSegment());
 			((Button) findViewById(R.id.button_ok)).setOnClickListener(new OnClickListener() {
 				public void onClick(View v) {
 					String url = urlEditText.getText().toString();
@@ -147,6 +151,21 @@ public class FeedConfigActivity extends Activity {
 						
 						values.put(FeedData.FeedColumns.NAME, name.trim().length() > 0 ? name : null);
 						values.put(FeedData.FeedColumns.FETCHMODE, 0);
+						
+						Cursor urlCursor = getContentResolver().query(getIntent().getData(), new String[] {FeedData.FeedColumns.URL}, null, null, null);
+						
+						boolean urlChanged = !urlCursor.moveToFirst() || !url.equals(urlCursor.getString(0));
+						
+						urlCursor.close();
+						if (urlChanged) {
+							values.putNull(FeedData.FeedColumns.ETAG); // the validators belong to the old url
+							values.putNull(FeedData.FeedColumns.LASTMODIFIED);
+							values.putNull(FeedData.FeedColumns.BODYDIGEST);
+							values.putNull(FeedData.FeedColumns.PUBLISHINTERVAL); // so is the publishing rhythm
+							values.putNull(FeedData.FeedColumns.NEXTREFRESH);
+							values.put(FeedData.FeedColumns.FAILURES, 0); // the new url gets a fresh chance
+							values.putNull(FeedData.FeedColumns.BACKOFFUNTIL);
+						}
 						values.put(FeedData.FeedColumns.WIFIONLY, refreshOnlyWifiCheckBox.isChecked() ? 1 : 0);
 						values.put(FeedData.FeedColumns.IMPOSE_USERAGENT, standardUseragentCheckBox.isChecked() ? 0 : 1);
 						values.put(FeedData.FeedColumns.HIDE_READ, hideReadCheckBox.isChecked() ? 1 : 0);
@@ -169,6 +188,21 @@ public class FeedConfigActivity extends Activity {
 		});
 	}
 	
+	/**
+	 * Shows what the recent refreshes of the feed have cost such that expensive feeds can be spotted.
+	 */
+	private void showFetchStatistics(String feedId) {
+		Cursor cursor = getContentResolver().query(FeedData.FeedColumns.FETCHLOG_CONTENT_URI(feedId), PROJECTION_FETCHSTATISTICS, null, null, null);
+		
+		if (cursor.moveToFirst() && cursor.getInt(0) > 0) {
+			TextView textView = (TextView) findViewById(R.id.fetchstatistics);
+			
+			textView.setText(getString(R.string.fetchstatistics, cursor.getInt(0), cursor.getInt(1), cursor.getInt(2), cursor.getInt(3), cursor.getInt(4), cursor.getInt(5), cursor.getInt(6) / 1024, cursor.getInt(7) / 1024, cursor.getInt(8), cursor.getInt(9)));
+			textView.setVisibility(View.VISIBLE);
+		}
+		cursor.close();
+	}
+	
 	private boolean restoreInstanceState(Bundle savedInstanceState) {
 		if (savedInstanceState != null && savedInstanceState.getBoolean(WASACTIVE, false)) {
 			nameEditText.setText(savedInstanceState.getCharSequence(FeedData.FeedColumns.NAME));
@@ -417,7 +417,6 @@ public class RSSOverview extends ListActivity implements Requeryable {
 						
 						String selection = Strings.READDATE_GREATERZERO+Strings.DB_AND+" ("+Strings.DB_EXCUDEFAVORITE+")";
 						
-						FeedData.deletePicturesOfFeed(RSSOverview.this, uri, selection);
 						if (getContentResolver().delete(uri, selection, null) > 0) {
 							getContentResolver().notifyChange(FeedData.FeedColumns.CONTENT_URI(id), null);
 						}
@@ -507,7 +506,6 @@ public class RSSOverview extends ListActivity implements Requeryable {
 				break;
 			}
 			case R.id.menu_deleteread: {
-				FeedData.deletePicturesOfFeedAsync(this, FeedData.EntryColumns.CONTENT_URI, Strings.READDATE_GREATERZERO);
 				getContentResolver().delete(FeedData.EntryColumns.CONTENT_URI, Strings.READDATE_GREATERZERO, null);
 				((RSSOverviewListAdapter) getListAdapter()).notifyDataSetChanged();
 				break;
@@ -612,7 +610,6 @@ public class RSSOverview extends ListActivity implements Requeryable {
 			public void onClick(DialogInterface dialog, int which) {
 				new Thread() {
 					public void run() {
-						FeedData.deletePicturesOfFeed(context, uri, Strings.DB_EXCUDEFAVORITE);
 						if (context.getContentResolver().delete(uri, Strings.DB_EXCUDEFAVORITE, null) > 0) {
 							context.getContentResolver().notifyChange(FeedData.FeedColumns.CONTENT_URI, null);
 						}
@@ -41,6 +41,7 @@ import android.view.View;
 import android.widget.ResourceCursorAdapter;
 import android.widget.TextView;
 import de.shandschuh.sparserss.provider.FeedData;
+import de.shandschuh.sparserss.service.FetcherService;
 
 public class RSSOverviewListAdapter extends ResourceCursorAdapter {
 	private static final String COUNT_UNREAD = "COUNT(*) - COUNT(readdate)";
@@ -61,6 +62,10 @@ public class RSSOverviewListAdapter extends ResourceCursorAdapter {
 	
 	private int iconPosition;
 	
+	private int failuresPosition;
+	
+	private int backoffUntilPosition;
+	
 	private Handler handler;
 	
 	private SimpleTask updateTask;
@@ -81,6 +86,8 @@ public class RSSOverviewListAdapter extends ResourceCursorAdapter {
 		linkPosition = getCursor().getColumnIndex(FeedData.FeedColumns.URL);
 		errorPosition = getCursor().getColumnIndex(FeedData.FeedColumns.ERROR);
 		iconPosition = getCursor().getColumnIndex(FeedData.FeedColumns.ICON);
+		failuresPosition = getCursor().getColumnIndex(FeedData.FeedColumns.FAILURES);
+		backoffUntilPosition = getCursor().getColumnIndex(FeedData.FeedColumns.BACKOFFUNTIL);
 		COLON = activity.getString(R.string.colon);
 		handler = new Handler();
 		updateTask = new SimpleTask() {
@@ -126,6 +133,10 @@ public class RSSOverviewListAdapter extends ResourceCursorAdapter {
 			Date date = new Date(timestamp);
 			
 			updateTextView.setText(new StringBuilder(context.getString(R.string.update)).append(COLON).append(timestamp == 0 ? context.getString(R.string.never) : new StringBuilder(dateFormat.format(date)).append(' ').append(timeFormat.format(date)).append(Strings.COMMASPACE).append(unreadCount).append('/').append(count).append(' ').append(context.getString(R.string.unread))));
+		} else if (cursor.getInt(failuresPosition) >= FetcherService.PAUSE_FAILURES) {
+			Date date = new Date(cursor.getLong(backoffUntilPosition));
+			
+			updateTextView.setText(new StringBuilder(context.getString(R.string.paused)).append(COLON).append(cursor.getString(errorPosition)).append(Strings.COMMASPACE).append(context.getString(R.string.nexttry)).append(COLON).append(dateFormat.format(date)).append(' ').append(timeFormat.format(date)));
 		} else {
 			updateTextView.setText(new StringBuilder(context.getString(R.string.error)).append(COLON).append(cursor.getString(errorPosition)));
 		}
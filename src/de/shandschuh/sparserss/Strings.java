@@ -48,6 +48,10 @@ public final class Strings {
 	
 	public static final String SETTINGS_FETCHPICTURES = "pictures.fetch";
 	
+	public static final String SETTINGS_IMAGEMAXEDGE = "pictures.maxedge";
+	
+	public static final String SETTINGS_IMAGEQUALITY = "pictures.quality";
+	
 	public static final String SETTINGS_PROXYENABLED = "proxy.enabled";
 	
 	public static final String SETTINGS_PROXYPORT = "proxy.port";
@@ -80,6 +84,14 @@ public final class Strings {
 	
 	public static final String SETTINGS_EFFICIENTFEEDPARSING = "efficientfeedparsing";
 	
+	public static final String SETTINGS_REFRESHTHREADS = "refresh.threads";
+	
+	public static final String SETTINGS_REFRESHDEADLINE = "refresh.deadline";
+	
+	public static final String SETTINGS_ENTRYMAXLENGTH = "entries.maxlength";
+	
+	public static final String SETTINGS_ENTRYKEEPFULL = "entries.keepfull";
+	
 	public static final String ACTION_REFRESHFEEDS = "de.shandschuh.sparserss.REFRESH";
 	
 	public static final String ACTION_STOPREFRESHFEEDS = "de.shandschuh.sparserss.STOPREFRESH";
@@ -90,6 +102,8 @@ public final class Strings {
 	
 	public static final String FEEDID = "feedid";
 	
+	public static final String FEEDIDS = "feedids";
+	
 	public static final String DB_ISNULL = " IS NULL";
 	
 	public static final String DB_DESC = " DESC";
@@ -130,10 +144,6 @@ public final class Strings {
 
 	public static final String URL_SPACE = "%20";
 
-	public static final String HTML_SPAN_REGEX = "<[/]?[ ]?span(.|\n)*?>";
-	
-	public static final String HTML_IMG_REGEX = "<[/]?[ ]?img(.|\n)*?>";
-	
 	public static final String ONE = "1";
 
 	public static final Object THREENEWLINES = "\n\n\n";
@@ -142,6 +152,9 @@ public final class Strings {
 	
 	public static final String PREFERENCE_LASTSCHEDULEDREFRESH = "lastscheduledrefresh";
 	
+	/** The ids of the feeds an interrupted refresh has not refreshed yet */
+	public static final String PREFERENCE_PENDINGFEEDS = "refresh.pendingfeeds";
+	
 	public static final String PREFERENCE_LASTTAB = "lasttab";
 	
 	public static final String HTML_LT = "&lt;";
@@ -178,6 +191,8 @@ public final class Strings {
 	
 	public static final String SLASH = "/";
 	
+	public static final String COMMA = ",";
+	
 	public static final String COMMASPACE = ", ";
 	
 	public static final String SCHEDULED = "scheduled";
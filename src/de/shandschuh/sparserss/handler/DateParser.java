@@ -0,0 +1,365 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.handler;
+
+import java.util.TimeZone;
+
+/**
+ * Parses the dates of feeds without any intermediate objects. It reads RFC 822
+ * dates like "Tue, 3 Jun 2008 11:05:30 GMT" as well as ISO 8601 dates like
+ * "2008-06-03T11:05:30.123+02:00"; the format is told by the shape of the value,
+ * so the element a date comes from does not matter. Day names, seconds and
+ * fractions of seconds are optional, the zone may be given as offset with or
+ * without colon or as one of the common abbreviations. The parser has no state,
+ * so it can be used by any number of threads.
+ */
+public final class DateParser {
+	private static final String[] MONTHS = {"jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"};
+	
+	private static final String[] ZONES = {"GMT", "UT", "UTC", "Z", "EST", "EDT", "CST", "CDT", "MST", "MDT", "PST", "PDT", "AKST", "AKDT", "HST", "WET", "WEST", "BST", "CET", "CEST", "MET", "MEST", "MEZ", "MESZ", "EET", "EEST", "MSK", "IST", "JST", "KST", "AEST", "AEDT", "NZST", "NZDT"};
+	
+	/** The offsets of the zones in minutes */
+	private static final int[] ZONE_OFFSETS = {0, 0, 0, 0, -300, -240, -360, -300, -420, -360, -480, -420, -540, -480, -600, 0, 60, 60, 60, 120, 60, 120, 60, 120, 120, 180, 180, 330, 540, 540, 600, 660, 720, 780};
+	
+	private static final long MILLIS_PER_MINUTE = 60000;
+	
+	private static final long MILLIS_PER_DAY = 86400000;
+	
+	/** Returned if the value is no date */
+	public static final long NONE = 0;
+	
+	private DateParser() {
+		
+	}
+	
+	/**
+	 * @return the date in milliseconds since the epoch or NONE if the value is no date
+	 */
+	public static long parse(CharSequence value) {
+		int end = value.length();
+		
+		int position = skipSpace(value, 0, end);
+		
+		if (position + 4 < end && value.charAt(position + 4) == '-' && digitCount(value, position, end) == 4) {
+			return parseIso8601(value, position, end);
+		} else {
+			return parseRfc822(value, position, end);
+		}
+	}
+	
+	private static long parseRfc822(CharSequence value, int position, int end) {
+		if (letterCount(value, position, end) > 0) {
+			/* the day name is only a hint */
+			position += letterCount(value, position, end);
+			position = skipSpace(value, position, end);
+			if (position < end && value.charAt(position) == ',') {
+				position = skipSpace(value, position + 1, end);
+			}
+		}
+		
+		int count = digitCount(value, position, end);
+		
+		if (count == 0 || count > 2) {
+			return NONE;
+		}
+		
+		int day = number(value, position, count);
+		
+		if (day < 1 || day > 31) {
+			return NONE;
+		}
+		position = skipSeparator(value, position + count, end);
+		count = letterCount(value, position, end);
+		if (count < 3) {
+			return NONE;
+		}
+		
+		int month = 0;
+		
+		while (month < 12 && !matches(value, position, 3, MONTHS[month])) {
+			month++;
+		}
+		if (month == 12) {
+			return NONE;
+		}
+		position = skipSeparator(value, position + count, end); // full month names are accepted as well
+		if (position < end && value.charAt(position) == '.') {
+			position = skipSpace(value, position + 1, end);
+		}
+		count = digitCount(value, position, end);
+		
+		int year;
+		
+		if (count == 4) {
+			year = number(value, position, 4);
+		} else if (count == 2) {
+			year = number(value, position, 2);
+			year += year < 50 ? 2000 : 1900;
+		} else {
+			return NONE;
+		}
+		position = skipSpace(value, position + count, end);
+		
+		long time = getTime(value, position, end);
+		
+		if (time < 0) {
+			return NONE;
+		}
+		position = (int) (time >>> 32);
+		
+		long date = getDays(year, month + 1, day) * MILLIS_PER_DAY + (time & 0xffffffffl);
+		
+		long offset = getZoneOffset(value, skipSpace(value, position, end), end);
+		
+		return offset == Long.MIN_VALUE ? date : date - offset; // a missing zone means GMT in RFC 822
+	}
+	
+	private static long parseIso8601(CharSequence value, int position, int end) {
+		int year = number(value, position, 4);
+		
+		position += 5;
+		
+		int count = digitCount(value, position, end);
+		
+		if (count != 2 || position + 2 >= end || value.charAt(position + 2) != '-') {
+			return NONE;
+		}
+		
+		int month = number(value, position, 2);
+		
+		position += 3;
+		count = digitCount(value, position, end);
+		if (count != 2 || month < 1 || month > 12) {
+			return NONE;
+		}
+		
+		int day = number(value, position, 2);
+		
+		if (day < 1 || day > 31) {
+			return NONE;
+		}
+		
+		long date = getDays(year, month, day) * MILLIS_PER_DAY;
+		
+		position += 2;
+		if (position < end && (value.charAt(position) == 'T' || value.charAt(position) == 't' || value.charAt(position) == ' ')) {
+			long time = getTime(value, position + 1, end);
+			
+			if (time < 0) {
+				return NONE;
+			}
+			position = (int) (time >>> 32);
+			date += time & 0xffffffffl;
+		} else if (skipSpace(value, position, end) == end) {
+			return date; // a plain day is taken as GMT
+		}
+		
+		long offset = getZoneOffset(value, skipSpace(value, position, end), end);
+		
+		if (offset == Long.MIN_VALUE) {
+			/* without zone the date is in local time */
+			TimeZone timeZone = TimeZone.getDefault();
+			
+			return date - timeZone.getOffset(date - timeZone.getRawOffset());
+		} else {
+			return date - offset;
+		}
+	}
+	
+	/**
+	 * Reads "HH:mm", "HH:mm:ss" or "HH:mm:ss.SSS" where the fraction may have any length.
+	 * 
+	 * @return the position after the time in the upper and the milliseconds of the day in the lower half or -1
+	 */
+	private static long getTime(CharSequence value, int position, int end) {
+		int count = digitCount(value, position, end);
+		
+		if (count == 0 || count > 2 || position + count >= end || value.charAt(position + count) != ':') {
+			return -1;
+		}
+		
+		int hours = number(value, position, count);
+		
+		position += count + 1;
+		count = digitCount(value, position, end);
+		if (count != 2) {
+			return -1;
+		}
+		
+		int minutes = number(value, position, 2);
+		
+		int seconds = 0;
+		
+		int millis = 0;
+		
+		position += 2;
+		if (position < end && value.charAt(position) == ':') {
+			count = digitCount(value, position + 1, end);
+			if (count != 2) {
+				return -1;
+			}
+			seconds = number(value, position + 1, 2);
+			position += 3;
+			if (position < end && (value.charAt(position) == '.' || value.charAt(position) == ',')) {
+				count = digitCount(value, position + 1, end);
+				millis = number(value, position + 1, Math.min(count, 3));
+				for (int n = count; n < 3; n++) {
+					millis *= 10;
+				}
+				position += count + 1;
+			}
+		}
+		if (hours > 24 || minutes > 59 || seconds > 60) {
+			return -1;
+		}
+		return ((long) position << 32) | (((hours * 60 + minutes) * 60 + seconds) * 1000 + millis);
+	}
+	
+	/**
+	 * Reads a numeric offset like "+0200", "+02:00" or "+02", a zone abbreviation or
+	 * an abbreviation followed by an offset like "GMT+2". Unknown abbreviations are
+	 * taken as GMT.
+	 * 
+	 * @return the offset in milliseconds or Long.MIN_VALUE if there is no zone
+	 */
+	private static long getZoneOffset(CharSequence value, int position, int end) {
+		if (position >= end) {
+			return Long.MIN_VALUE;
+		}
+		
+		long offset = 0;
+		
+		int count = letterCount(value, position, end);
+		
+		if (count > 0) {
+			for (int n = 0; n < ZONES.length; n++) {
+				if (ZONES[n].length() == count && matches(value, position, count, ZONES[n])) {
+					offset = ZONE_OFFSETS[n] * MILLIS_PER_MINUTE;
+					break;
+				}
+			}
+			position += count;
+			if (position >= end) {
+				return offset;
+			}
+		}
+		
+		char sign = value.charAt(position);
+		
+		if (sign != '+' && sign != '-') {
+			return count > 0 ? offset : Long.MIN_VALUE;
+		}
+		position++;
+		count = digitCount(value, position, end);
+		
+		int minutes;
+		
+		if (count == 4) {
+			minutes = number(value, position, 2) * 60 + number(value, position + 2, 2);
+		} else if (count == 1 || count == 2) {
+			minutes = number(value, position, count) * 60;
+			position += count;
+			if (position < end && value.charAt(position) == ':' && digitCount(value, position + 1, end) == 2) {
+				minutes += number(value, position + 1, 2);
+			}
+		} else {
+			return offset;
+		}
+		return offset + (sign == '-' ? -minutes : minutes) * MILLIS_PER_MINUTE;
+	}
+	
+	/**
+	 * @return the days between the epoch and the given day of the proleptic gregorian calendar
+	 */
+	private static long getDays(int year, int month, int day) {
+		if (month <= 2) {
+			year--;
+		}
+		
+		int era = (year >= 0 ? year : year - 399) / 400;
+		
+		int yearOfEra = year - era * 400;
+		
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		
+		return era * 146097l + yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear - 719468;
+	}
+	
+	private static boolean matches(CharSequence value, int position, int count, String text) {
+		for (int n = 0; n < count; n++) {
+			if (Character.toLowerCase(value.charAt(position + n)) != Character.toLowerCase(text.charAt(n))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static int number(CharSequence value, int position, int count) {
+		int result = 0;
+		
+		for (int n = 0; n < count; n++) {
+			result = result * 10 + value.charAt(position + n) - '0';
+		}
+		return result;
+	}
+	
+	private static int digitCount(CharSequence value, int position, int end) {
+		int n = position;
+		
+		while (n < end && value.charAt(n) >= '0' && value.charAt(n) <= '9') {
+			n++;
+		}
+		return n - position;
+	}
+	
+	private static int letterCount(CharSequence value, int position, int end) {
+		int n = position;
+		
+		while (n < end && ((value.charAt(n) >= 'a' && value.charAt(n) <= 'z') || (value.charAt(n) >= 'A' && value.charAt(n) <= 'Z'))) {
+			n++;
+		}
+		return n - position;
+	}
+	
+	private static int skipSpace(CharSequence value, int position, int end) {
+		while (position < end && Character.isWhitespace(value.charAt(position))) {
+			position++;
+		}
+		return position;
+	}
+	
+	/**
+	 * Skips the spaces or the dash between the parts of a date like "3-Jun-2008".
+	 */
+	private static int skipSeparator(CharSequence value, int position, int end) {
+		position = skipSpace(value, position, end);
+		if (position < end && value.charAt(position) == '-') {
+			position = skipSpace(value, position + 1, end);
+		}
+		return position;
+	}
+	
+}
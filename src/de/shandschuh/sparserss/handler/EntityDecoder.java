@@ -0,0 +1,245 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.handler;
+
+/**
+ * Turns the html of a title or an author into plain text in a single pass: tags
+ * are removed, named and numeric entities are decoded and whitespace is collapsed.
+ * Entities that have been escaped twice like "&amp;amp;lt;" are decoded completely
+ * as many feeds escape their titles once too often. An instance reuses its buffer,
+ * so it must not be shared between threads.
+ */
+public class EntityDecoder {
+	/** The names of the known entities in the order of String.compareTo(..) */
+	private static final String[] ENTITY_NAMES = {
+		"AElig", "Aacute", "Acirc", "Agrave", "Aring", "Atilde", "Auml", "Ccedil", "Dagger", "ETH", "Eacute", "Ecirc",
+		"Egrave", "Euml", "Iacute", "Icirc", "Igrave", "Iuml", "Ntilde", "OElig", "Oacute", "Ocirc", "Ograve", "Oslash",
+		"Otilde", "Ouml", "Prime", "Scaron", "THORN", "Uacute", "Ucirc", "Ugrave", "Uuml", "Yacute", "Yuml", "aacute",
+		"acirc", "acute", "aelig", "agrave", "amp", "apos", "aring", "atilde", "auml", "bdquo", "brvbar", "bull",
+		"ccedil", "cedil", "cent", "circ", "copy", "curren", "dagger", "darr", "deg", "divide", "eacute", "ecirc",
+		"egrave", "emsp", "ensp", "eth", "euml", "euro", "fnof", "frac12", "frac14", "frac34", "frasl", "gt",
+		"harr", "hellip", "iacute", "icirc", "iexcl", "igrave", "iquest", "iuml", "laquo", "larr", "ldquo", "lrm",
+		"lsaquo", "lsquo", "lt", "macr", "mdash", "micro", "middot", "nbsp", "ndash", "not", "ntilde", "oacute",
+		"ocirc", "oelig", "ograve", "oline", "ordf", "ordm", "oslash", "otilde", "ouml", "para", "permil", "plusmn",
+		"pound", "prime", "quot", "raquo", "rarr", "rdquo", "reg", "rlm", "rsaquo", "rsquo", "sbquo", "scaron",
+		"sect", "shy", "sup1", "sup2", "sup3", "szlig", "thinsp", "thorn", "tilde", "times", "trade", "uacute",
+		"uarr", "ucirc", "ugrave", "uml", "uuml", "yacute", "yen", "yuml", "zwj", "zwnj"
+	};
+	
+	private static final char[] ENTITY_VALUES = {
+		'\u00c6', '\u00c1', '\u00c2', '\u00c0', '\u00c5', '\u00c3', '\u00c4', '\u00c7', '\u2021', '\u00d0', '\u00c9', '\u00ca',
+		'\u00c8', '\u00cb', '\u00cd', '\u00ce', '\u00cc', '\u00cf', '\u00d1', '\u0152', '\u00d3', '\u00d4', '\u00d2', '\u00d8',
+		'\u00d5', '\u00d6', '\u2033', '\u0160', '\u00de', '\u00da', '\u00db', '\u00d9', '\u00dc', '\u00dd', '\u0178', '\u00e1',
+		'\u00e2', '\u00b4', '\u00e6', '\u00e0', '\u0026', '\'', '\u00e5', '\u00e3', '\u00e4', '\u201e', '\u00a6', '\u2022',
+		'\u00e7', '\u00b8', '\u00a2', '\u02c6', '\u00a9', '\u00a4', '\u2020', '\u2193', '\u00b0', '\u00f7', '\u00e9', '\u00ea',
+		'\u00e8', '\u2003', '\u2002', '\u00f0', '\u00eb', '\u20ac', '\u0192', '\u00bd', '\u00bc', '\u00be', '\u2044', '\u003e',
+		'\u2194', '\u2026', '\u00ed', '\u00ee', '\u00a1', '\u00ec', '\u00bf', '\u00ef', '\u00ab', '\u2190', '\u201c', '\u200e',
+		'\u2039', '\u2018', '\u003c', '\u00af', '\u2014', '\u00b5', '\u00b7', '\u00a0', '\u2013', '\u00ac', '\u00f1', '\u00f3',
+		'\u00f4', '\u0153', '\u00f2', '\u203e', '\u00aa', '\u00ba', '\u00f8', '\u00f5', '\u00f6', '\u00b6', '\u2030', '\u00b1',
+		'\u00a3', '\u2032', '\u0022', '\u00bb', '\u2192', '\u201d', '\u00ae', '\u200f', '\u203a', '\u2019', '\u201a', '\u0161',
+		'\u00a7', '\u00ad', '\u00b9', '\u00b2', '\u00b3', '\u00df', '\u2009', '\u00fe', '\u02dc', '\u00d7', '\u2122', '\u00fa',
+		'\u2191', '\u00fb', '\u00f9', '\u00a8', '\u00fc', '\u00fd', '\u00a5', '\u00ff', '\u200d', '\u200c'
+	};
+	
+	private static final String AMP = "amp;";
+	
+	private static final int MAX_CODEPOINT = 0x10ffff;
+	
+	private StringBuilder buffer;
+	
+	public EntityDecoder() {
+		buffer = new StringBuilder();
+	}
+	
+	public String decode(CharSequence text) {
+		buffer.setLength(0);
+		
+		boolean space = false;
+		
+		/* once a tag is not closed, no later one is, so the rest is not searched again */
+		boolean unclosedTag = false;
+		
+		for (int n = 0, i = text.length(); n < i; n++) {
+			char c = text.charAt(n);
+			
+			if (c == '<' && !unclosedTag) {
+				int end = indexOf(text, '>', n + 1, i);
+				
+				if (end > -1) {
+					n = end;
+					continue;
+				} else {
+					unclosedTag = true;
+				}
+			} else if (Character.isWhitespace(c)) {
+				space = true;
+				continue;
+			}
+			if (space) {
+				appendSpace();
+				space = false;
+			}
+			if (c == '&') {
+				int start = n + 1;
+				
+				while (matches(text, start, i, AMP)) {
+					start += AMP.length();
+				}
+				
+				int end = decodeEntity(text, start, i);
+				
+				if (end > -1) {
+					n = end - 1;
+					continue;
+				} else if (start > n + 1) {
+					n = start - 1; // at least the escaped ampersand is decoded
+				}
+			}
+			buffer.append(c);
+		}
+		
+		int length = buffer.length();
+		
+		if (length > 0 && buffer.charAt(length - 1) == ' ') {
+			buffer.setLength(length - 1); // a trailing space can only come from an entity
+		}
+		return buffer.toString();
+	}
+	
+	/**
+	 * Appends the character of the entity that starts at the given position, i.e. after the ampersand.
+	 * 
+	 * @return the position after the entity or -1 if there is no known entity
+	 */
+	private int decodeEntity(CharSequence text, int position, int end) {
+		if (position >= end) {
+			return -1;
+		}
+		if (text.charAt(position) == '#') {
+			int n = position + 1;
+			
+			int radix = 10;
+			
+			if (n < end && (text.charAt(n) == 'x' || text.charAt(n) == 'X')) {
+				radix = 16;
+				n++;
+			}
+			
+			int start = n;
+			
+			int codePoint = 0;
+			
+			while (n < end && codePoint <= MAX_CODEPOINT && Character.digit(text.charAt(n), radix) > -1) {
+				codePoint = codePoint * radix + Character.digit(text.charAt(n), radix);
+				n++;
+			}
+			if (n == start || codePoint == 0 || codePoint > MAX_CODEPOINT || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+				return -1;
+			}
+			appendCodePoint(codePoint);
+			return n < end && text.charAt(n) == ';' ? n + 1 : n; // the semicolon may be missing
+		} else {
+			int semicolon = indexOf(text, ';', position, Math.min(end, position + 8));
+			
+			if (semicolon == -1) {
+				return -1;
+			}
+			
+			int low = 0;
+			
+			int high = ENTITY_NAMES.length - 1;
+			
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				
+				int comparison = compare(ENTITY_NAMES[middle], text, position, semicolon);
+				
+				if (comparison < 0) {
+					low = middle + 1;
+				} else if (comparison > 0) {
+					high = middle - 1;
+				} else {
+					appendCodePoint(ENTITY_VALUES[middle]);
+					return semicolon + 1;
+				}
+			}
+			return -1;
+		}
+	}
+	
+	private void appendCodePoint(int codePoint) {
+		if (codePoint == ' ' || codePoint == '\t' || codePoint == '\n' || codePoint == '\r') {
+			appendSpace(); // encoded whitespace is collapsed as well
+		} else if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+			buffer.append((char) codePoint);
+		} else {
+			codePoint -= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+			buffer.append((char) (Character.MIN_HIGH_SURROGATE + (codePoint >> 10)));
+			buffer.append((char) (Character.MIN_LOW_SURROGATE + (codePoint & 0x3ff)));
+		}
+	}
+	
+	private void appendSpace() {
+		int length = buffer.length();
+		
+		if (length > 0 && buffer.charAt(length - 1) != ' ') {
+			buffer.append(' ');
+		}
+	}
+	
+	private static int compare(String name, CharSequence text, int start, int end) {
+		for (int n = 0, i = Math.min(name.length(), end - start); n < i; n++) {
+			int difference = name.charAt(n) - text.charAt(start + n);
+			
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return name.length() - (end - start);
+	}
+	
+	private static boolean matches(CharSequence text, int position, int end, String value) {
+		if (position + value.length() > end) {
+			return false;
+		}
+		for (int n = 0, i = value.length(); n < i; n++) {
+			if (text.charAt(position + n) != value.charAt(n)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static int indexOf(CharSequence text, char c, int start, int end) {
+		for (int n = start; n < end; n++) {
+			if (text.charAt(n) == c) {
+				return n;
+			}
+		}
+		return -1;
+	}
+	
+}
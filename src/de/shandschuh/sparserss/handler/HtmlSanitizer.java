@@ -0,0 +1,394 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.handler;
+
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Cleans the html of an entry in a single pass: spans, scripts, styles, comments
+ * and tracking pixels are removed and the urls of the remaining images are
+ * collected. Everything else is copied as it is. An instance reuses its buffer,
+ * so it must not be shared between threads.
+ */
+public class HtmlSanitizer {
+	private static final String TAG_SPAN = "span";
+	
+	private static final String TAG_SCRIPT = "script";
+	
+	private static final String TAG_STYLE = "style";
+	
+	private static final String TAG_IMG = "img";
+	
+	private static final String ATTRIBUTE_SRC = "src";
+	
+	private static final String ATTRIBUTE_WIDTH = "width";
+	
+	private static final String ATTRIBUTE_HEIGHT = "height";
+	
+	private static final String COMMENT_START = "<!--";
+	
+	private static final String COMMENT_END = "-->";
+	
+	private static final String END_TAG_START = "</";
+	
+	private static final String AMP_SG = "&amp;";
+	
+	private static final String URL_SPACE = "%20";
+	
+	private StringBuilder buffer;
+	
+	public HtmlSanitizer() {
+		buffer = new StringBuilder();
+	}
+	
+	/**
+	 * @param images the vector the image urls are added to or null if they are not needed
+	 * @return the trimmed and cleaned html
+	 */
+	public String sanitize(CharSequence html, Vector<String> images) {
+		buffer.setLength(0);
+		
+		int end = html.length();
+		
+		while (end > 0 && Character.isWhitespace(html.charAt(end - 1))) {
+			end--;
+		}
+		
+		int n = 0;
+		
+		while (n < end && Character.isWhitespace(html.charAt(n))) {
+			n++;
+		}
+		
+		/* the text that is copied as it is starts here */
+		int copyStart = n;
+		
+		while ((n = indexOf(html, '<', n, end)) > -1) {
+			if (matches(html, n, end, COMMENT_START)) {
+				buffer.append(html, copyStart, n);
+				n = indexOf(html, COMMENT_END, n + COMMENT_START.length(), end);
+				copyStart = n = n == -1 ? end : n + COMMENT_END.length();
+				continue;
+			}
+			
+			int tagEnd = getTagEnd(html, n, end);
+			
+			if (tagEnd == -1) {
+				n++; // no tag but a single '<'
+				continue;
+			}
+			
+			int nameStart = getNameStart(html, n, end);
+			
+			boolean endTag = html.charAt(n + 1) == '/';
+			
+			if (isTag(html, nameStart, end, TAG_SPAN)) {
+				buffer.append(html, copyStart, n);
+				copyStart = tagEnd;
+			} else if (!endTag && (isTag(html, nameStart, end, TAG_SCRIPT) || isTag(html, nameStart, end, TAG_STYLE))) {
+				buffer.append(html, copyStart, n);
+				
+				/* the content is dropped up to and including the end tag */
+				int contentEnd = indexOfEndTag(html, isTag(html, nameStart, end, TAG_SCRIPT) ? TAG_SCRIPT : TAG_STYLE, tagEnd, end);
+				
+				tagEnd = contentEnd == -1 ? -1 : getTagEnd(html, contentEnd, end);
+				copyStart = tagEnd = tagEnd == -1 ? end : tagEnd;
+			} else if (!endTag && isTag(html, nameStart, end, TAG_IMG)) {
+				int attributesStart = nameStart + TAG_IMG.length();
+				
+				int srcStart = getAttributeStart(html, attributesStart, tagEnd, ATTRIBUTE_SRC);
+				
+				if (srcStart == -1 || (isPixel(html, getAttributeStart(html, attributesStart, tagEnd, ATTRIBUTE_WIDTH), tagEnd) && isPixel(html, getAttributeStart(html, attributesStart, tagEnd, ATTRIBUTE_HEIGHT), tagEnd))) {
+					buffer.append(html, copyStart, n); // an image without source or a tracking pixel
+					copyStart = tagEnd;
+				} else if (images != null) {
+					images.add(getImageUrl(html, srcStart, getAttributeEnd(html, srcStart, tagEnd)));
+				}
+			}
+			n = tagEnd;
+		}
+		if (copyStart < end) {
+			buffer.append(html, copyStart, end);
+		}
+		return buffer.toString();
+	}
+	
+	/**
+	 * Points the sources of images to the given urls in a single pass.
+	 * 
+	 * @param urls maps the image urls as they are collected by sanitize(..) to the urls that replace them
+	 * @param removeImages true if all images are removed
+	 */
+	public static String replaceImages(CharSequence html, HashMap<String, String> urls, boolean removeImages) {
+		StringBuilder builder = new StringBuilder(html.length());
+		
+		int end = html.length();
+		
+		int copyStart = 0;
+		
+		int n = 0;
+		
+		while ((n = indexOf(html, '<', n, end)) > -1) {
+			int nameStart = getNameStart(html, n, end);
+			
+			int tagEnd = n + 1 < end && html.charAt(n + 1) != '/' && isTag(html, nameStart, end, TAG_IMG) ? getTagEnd(html, n, end) : -1;
+			
+			if (tagEnd == -1) {
+				n++;
+			} else if (removeImages) {
+				builder.append(html, copyStart, n);
+				copyStart = n = tagEnd;
+			} else {
+				int srcStart = getAttributeStart(html, nameStart + TAG_IMG.length(), tagEnd, ATTRIBUTE_SRC);
+				
+				if (srcStart > -1) {
+					int srcEnd = getAttributeEnd(html, srcStart, tagEnd);
+					
+					String url = urls.get(getImageUrl(html, srcStart, srcEnd));
+					
+					if (url != null) {
+						builder.append(html, copyStart, srcStart).append(url);
+						copyStart = srcEnd;
+					}
+				}
+				n = tagEnd;
+			}
+		}
+		builder.append(html, copyStart, end);
+		return builder.toString();
+	}
+	
+	/**
+	 * The url of an image is taken as the browser would request it.
+	 */
+	private static String getImageUrl(CharSequence html, int start, int end) {
+		StringBuilder builder = new StringBuilder(end - start);
+		
+		for (int n = start; n < end; n++) {
+			char c = html.charAt(n);
+			
+			if (c == ' ') {
+				builder.append(URL_SPACE);
+			} else if (c == '&' && matches(html, n, end, AMP_SG)) {
+				builder.append(c);
+				n += AMP_SG.length() - 1;
+			} else {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * @return the position of the name after "<", "</" or "< " or the position after the '<'
+	 */
+	private static int getNameStart(CharSequence html, int position, int end) {
+		position++;
+		if (position < end && html.charAt(position) == '/') {
+			position++;
+		}
+		if (position < end && html.charAt(position) == ' ') {
+			position++;
+		}
+		return position;
+	}
+	
+	/**
+	 * @return the position after the '>' of the tag that starts at the given position or -1 if it is no tag
+	 */
+	private static int getTagEnd(CharSequence html, int position, int end) {
+		if (position + 1 >= end) {
+			return -1;
+		}
+		
+		int nameStart = getNameStart(html, position, end);
+		
+		if (nameStart >= end || !Character.isLetter(html.charAt(nameStart))) {
+			return -1;
+		}
+		
+		char quote = 0;
+		
+		for (int n = nameStart + 1; n < end; n++) {
+			char c = html.charAt(n);
+			
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>') {
+				return n + 1;
+			}
+		}
+		return -1;
+	}
+	
+	private static boolean isTag(CharSequence html, int position, int end, String name) {
+		int nameEnd = position + name.length();
+		
+		if (nameEnd > end) {
+			return false;
+		}
+		for (int n = 0, i = name.length(); n < i; n++) {
+			if (Character.toLowerCase(html.charAt(position + n)) != name.charAt(n)) {
+				return false;
+			}
+		}
+		return nameEnd == end || !Character.isLetterOrDigit(html.charAt(nameEnd));
+	}
+	
+	/**
+	 * @return the start of the value of the attribute or -1 if the tag does not have it
+	 */
+	private static int getAttributeStart(CharSequence html, int position, int tagEnd, String name) {
+		int n = position;
+		
+		while (n < tagEnd) {
+			char c = html.charAt(n);
+			
+			if (Character.isWhitespace(c) || c == '/' || c == '>') {
+				n++;
+				continue;
+			}
+			
+			int nameStart = n;
+			
+			while (n < tagEnd && html.charAt(n) != '=' && html.charAt(n) != '>' && !Character.isWhitespace(html.charAt(n))) {
+				n++;
+			}
+			
+			int nameEnd = n;
+			
+			while (n < tagEnd && Character.isWhitespace(html.charAt(n))) {
+				n++;
+			}
+			if (n < tagEnd && html.charAt(n) == '=') {
+				n++;
+				while (n < tagEnd && Character.isWhitespace(html.charAt(n))) {
+					n++;
+				}
+				
+				int valueStart = n < tagEnd && (html.charAt(n) == '"' || html.charAt(n) == '\'') ? n + 1 : n;
+				
+				if (nameEnd - nameStart == name.length() && isTag(html, nameStart, nameEnd, name)) {
+					return valueStart;
+				}
+				n = getAttributeEnd(html, valueStart, tagEnd);
+				if (n < tagEnd && (html.charAt(n) == '"' || html.charAt(n) == '\'')) {
+					n++;
+				}
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return the position after the value of the attribute that starts at the given position
+	 */
+	private static int getAttributeEnd(CharSequence html, int valueStart, int tagEnd) {
+		char quote = valueStart > 0 ? html.charAt(valueStart - 1) : 0;
+		
+		int n = valueStart;
+		
+		if (quote == '"' || quote == '\'') {
+			while (n < tagEnd && html.charAt(n) != quote) {
+				n++;
+			}
+		} else {
+			while (n < tagEnd && html.charAt(n) != '>' && !Character.isWhitespace(html.charAt(n))) {
+				n++;
+			}
+			if (n > valueStart && n == tagEnd - 1 && html.charAt(n - 1) == '/') {
+				n--; // the slash of "<img src=a.png/>" belongs to the tag
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * @return true if the value of the size attribute is at most one pixel
+	 */
+	private static boolean isPixel(CharSequence html, int valueStart, int tagEnd) {
+		if (valueStart == -1) {
+			return false;
+		}
+		
+		int n = valueStart;
+		
+		int value = 0;
+		
+		while (n < tagEnd && value < 2 && html.charAt(n) >= '0' && html.charAt(n) <= '9') {
+			value = value * 10 + html.charAt(n++) - '0';
+		}
+		return n > valueStart && value < 2;
+	}
+	
+	private static int indexOfEndTag(CharSequence html, String name, int position, int end) {
+		while ((position = indexOf(html, END_TAG_START, position, end)) > -1) {
+			if (isTag(html, position + END_TAG_START.length(), end, name)) {
+				return position;
+			}
+			position++;
+		}
+		return -1;
+	}
+	
+	private static boolean matches(CharSequence html, int position, int end, String value) {
+		if (position + value.length() > end) {
+			return false;
+		}
+		for (int n = 0, i = value.length(); n < i; n++) {
+			if (html.charAt(position + n) != value.charAt(n)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static int indexOf(CharSequence html, char c, int position, int end) {
+		for (int n = position; n < end; n++) {
+			if (html.charAt(n) == c) {
+				return n;
+			}
+		}
+		return -1;
+	}
+	
+	private static int indexOf(CharSequence html, String value, int position, int end) {
+		char first = value.charAt(0);
+		
+		for (int n = position; (n = indexOf(html, first, n, end)) > -1; n++) {
+			if (matches(html, n, end, value)) {
+				return n;
+			}
+		}
+		return -1;
+	}
+	
+}
@@ -25,21 +25,18 @@
 
 package de.shandschuh.sparserss.handler;
 
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
-import java.io.UnsupportedEncodingException;
-import java.net.URL;
-import java.net.URLEncoder;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.Writer;
 import java.util.Date;
-import java.util.Locale;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -47,17 +44,16 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.net.Uri;
 import android.preference.PreferenceManager;
-import android.text.Html;
 import de.shandschuh.sparserss.Strings;
 import de.shandschuh.sparserss.provider.FeedData;
 import de.shandschuh.sparserss.provider.FeedDataContentProvider;
-import de.shandschuh.sparserss.service.FetcherService;
+import de.shandschuh.sparserss.service.EntryWriter;
+import de.shandschuh.sparserss.service.FetchLog;
 
 public class RSSHandler extends DefaultHandler {
-	private static final String ANDRHOMBUS = "&#";
-	
 	private static final String TAG_RSS = "rss";
 	
 	private static final String TAG_RDF = "rdf";
@@ -118,69 +114,163 @@ public class RSSHandler extends DefaultHandler {
 	
 	private static final String ATTRIBUTE_REL = "rel";
 	
-	private static final String UTF8 = "UTF-8";
+	private static final int ELEMENT_UPDATED = 1;
 	
-	private static final String PERCENT = "%";
+	private static final int ELEMENT_ENTRY = 2;
 	
-	/** This can be any valid filename character sequence which does not contain '%' */
-	private static final String PERCENT_REPLACE = "____";
+	private static final int ELEMENT_TITLE = 3;
 	
-	private static final String[] TIMEZONES = {"MEST", "EST", "PST"};
+	private static final int ELEMENT_LINK = 4;
+	
+	private static final int ELEMENT_DESCRIPTION = 5;
+	
+	private static final int ELEMENT_CONTENT = 6;
+	
+	private static final int ELEMENT_SUMMARY = 7;
+	
+	private static final int ELEMENT_PUBDATE = 8;
+	
+	private static final int ELEMENT_DATE = 9;
+	
+	private static final int ELEMENT_LASTBUILDDATE = 10;
+	
+	private static final int ELEMENT_ENCODEDCONTENT = 11;
+	
+	private static final int ELEMENT_ENCLOSURE = 12;
+	
+	private static final int ELEMENT_GUID = 13;
+	
+	private static final int ELEMENT_AUTHOR = 14;
+	
+	private static final int ELEMENT_CREATOR = 15;
+	
+	private static final int ELEMENT_NAME = 16;
+	
+	private static final int ELEMENT_ENCLOSUREURL = 17;
+	
+	private static final int ELEMENT_ENCLOSURETYPE = 18;
+	
+	private static final int ELEMENT_ENCLOSURELENGTH = 19;
+	
+	private static final int ELEMENT_FEED = 20;
+	
+	/** Maps the local names of the known elements to their ELEMENT_ constants */
+	private static final HashMap<String, Integer> ELEMENTS = new HashMap<String, Integer>();
+	
+	/* the text goes to the entered field with the lowest bit, so the order of the bits is the priority */
+	private static final int FIELD_TITLE = 1;
+	
+	private static final int FIELD_UPDATED = 2;
+	
+	private static final int FIELD_LINK = 4;
+	
+	private static final int FIELD_DESCRIPTION = 8;
+	
+	private static final int FIELD_PUBDATE = 16;
+	
+	private static final int FIELD_DATE = 32;
+	
+	private static final int FIELD_LASTBUILDDATE = 64;
+	
+	private static final int FIELD_GUID = 128;
+	
+	/** Set while a name of an author is entered */
+	private static final int FIELD_AUTHORNAME = 256;
+	
+	private static final int FIELD_ENCLOSUREURL = 512;
+	
+	private static final int FIELD_ENCLOSURETYPE = 1024;
+	
+	private static final int FIELD_ENCLOSURELENGTH = 2048;
+	
+	/* the following elements only mark the context of other fields, their bits are above all text bits and never get the text */
+	private static final int FIELD_AUTHOR = 4096;
+	
+	private static final int FIELD_NAME = 8192;
+	
+	private static final int FIELD_ENCLOSURE = 16384;
+	
+	static {
+		ELEMENTS.put(TAG_UPDATED, ELEMENT_UPDATED);
+		ELEMENTS.put(TAG_ENTRY, ELEMENT_ENTRY);
+		ELEMENTS.put(TAG_ITEM, ELEMENT_ENTRY);
+		ELEMENTS.put(TAG_TITLE, ELEMENT_TITLE);
+		ELEMENTS.put(TAG_LINK, ELEMENT_LINK);
+		ELEMENTS.put(TAG_DESCRIPTION, ELEMENT_DESCRIPTION);
+		ELEMENTS.put(TAG_CONTENT, ELEMENT_CONTENT);
+		ELEMENTS.put(TAG_SUMMARY, ELEMENT_SUMMARY);
+		ELEMENTS.put(TAG_PUBDATE, ELEMENT_PUBDATE);
+		ELEMENTS.put(TAG_DATE, ELEMENT_DATE);
+		ELEMENTS.put(TAG_LASTBUILDDATE, ELEMENT_LASTBUILDDATE);
+		ELEMENTS.put(TAG_ENCODEDCONTENT, ELEMENT_ENCODEDCONTENT);
+		ELEMENTS.put(TAG_ENCLOSURE, ELEMENT_ENCLOSURE);
+		ELEMENTS.put(TAG_GUID, ELEMENT_GUID);
+		ELEMENTS.put(TAG_AUTHOR, ELEMENT_AUTHOR);
+		ELEMENTS.put(TAG_CREATOR, ELEMENT_CREATOR);
+		ELEMENTS.put(TAG_NAME, ELEMENT_NAME);
+		ELEMENTS.put(TAG_ENCLOSUREURL, ELEMENT_ENCLOSUREURL);
+		ELEMENTS.put(TAG_ENCLOSURETYPE, ELEMENT_ENCLOSURETYPE);
+		ELEMENTS.put(TAG_ENCLOSURELENGTH, ELEMENT_ENCLOSURELENGTH);
+		ELEMENTS.put(TAG_RSS, ELEMENT_FEED);
+		ELEMENTS.put(TAG_RDF, ELEMENT_FEED);
+		ELEMENTS.put(TAG_FEED, ELEMENT_FEED);
+	}
 	
-	private static final String[] TIMEZONES_REPLACE = {"+0200", "-0500", "-0800"};
-
-	private static final int TIMEZONES_COUNT = 3;
-
 	
 	private static long KEEP_TIME = 345600000l; // 4 days
 	
 	
-	private static final DateFormat[] PUBDATE_DATEFORMATS = {
-		new SimpleDateFormat("EEE', 'd' 'MMM' 'yyyy' 'HH:mm:ss' 'Z", Locale.US),
-		new SimpleDateFormat("d' 'MMM' 'yyyy' 'HH:mm:ss' 'Z", Locale.US),
-		new SimpleDateFormat("EEE', 'd' 'MMM' 'yyyy' 'HH:mm:ss' 'z", Locale.US),
-		
-	};
-
-	private static final int PUBDATEFORMAT_COUNT = 3;
+	private static final int MAX_PUBLISHDATES = 16;
 	
-	private static final DateFormat[] UPDATE_DATEFORMATS = {
-		new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ"),
-		new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSz", Locale.US),
-		new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US),
-	};
+	/** The parsed entries are handed to the writer in batches of this size */
+	private static final int MAX_BATCHENTRIES = 32;
 	
-	private static final int DATEFORMAT_COUNT = 3;
+	private static final int MAX_POOLEDBUFFERS = 16;
 	
-	private static final String Z = "Z";
+	/** Larger buffers are left to the garbage collector, so a single long entry does not stay in memory */
+	private static final int MAX_POOLEDCAPACITY = 16384;
 	
-	private static final String GMT = "GMT";
+	private static final int MAX_TITLELENGTH = 1024;
 	
-	private static final StringBuilder DB_FAVORITE  = new StringBuilder(" AND (").append(Strings.DB_EXCUDEFAVORITE).append(')');
-
-	private static final Pattern imgPattern = Pattern.compile("<img src=\\s*['\"]([^'\"]+)['\"][^>]*>", Pattern.CASE_INSENSITIVE); // middle () is group 1; s* is important for non-whitespaces; ' also usable
+	private static final int MAX_DATELENGTH = 128;
 	
-	private Context context;
+	private static final int MAX_LINKLENGTH = 4096;
 	
-	private Date lastUpdateDate;
+	private static final int MAX_GUIDLENGTH = 4096;
 	
-	String id;
-
-	private boolean titleTagEntered;
+	private static final int MAX_AUTHORLENGTH = 1024;
+	
+	private static final int MAX_ENCLOSUREURLLENGTH = 4096;
+	
+	private static final int MAX_ENCLOSURETYPELENGTH = 256;
+	
+	private static final int MAX_ENCLOSURELENGTHLENGTH = 32;
 	
-	private boolean updatedTagEntered;
+	public static final int DEFAULT_MAXDESCRIPTIONLENGTH = 262144;
 	
-	private boolean linkTagEntered;
+	private static final String TEMPFILE_SUFFIX = ".tmp";
 	
-	private boolean descriptionTagEntered;
+	private static final String UTF8 = "UTF-8";
+	
+	private static final String[] PROJECTION_ENTRYKEY = new String[] {FeedData.EntryColumns.LINK, FeedData.EntryColumns.ENCLOSURE, FeedData.EntryColumns.GUID};
+	
+	private static final char KEY_SEPARATOR = '\n';
+	
+	private static final StringBuilder DB_FAVORITE  = new StringBuilder(" AND (").append(Strings.DB_EXCUDEFAVORITE).append(')');
+
 	
-	private boolean pubDateTagEntered;
+	private Context context;
 	
-	private boolean dateTagEntered;
+	private EntityDecoder entityDecoder;
 	
-	private boolean lastUpdateDateTagEntered;
+	private HtmlSanitizer htmlSanitizer;
 	
-	private boolean guidTagEntered;
+	private Date lastUpdateDate;
+	
+	String id;
+
+	/** The FIELD_ bits of the entered elements, the lowest bit gets the text */
+	private int fields;
 	
 	private StringBuilder title;
 	
@@ -196,7 +286,8 @@ public class RSSHandler extends DefaultHandler {
 	
 	private Uri feedEntiresUri;
 	
-	private int newCount;
+	/** The number of entries in the parsed part of the feed, new or not */
+	private int entryCount;
 	
 	private boolean feedRefreshed;
 	
@@ -204,7 +295,7 @@ public class RSSHandler extends DefaultHandler {
 	
 	private String feedBaseUrl;
 	
-	private boolean done;
+	private volatile boolean done;
 	
 	private Date keepDateBorder;
 	
@@ -212,9 +303,7 @@ public class RSSHandler extends DefaultHandler {
 	
 	private Reader reader;
 
-	private boolean fetchImages;
-	
-	private boolean cancelled;
+	private volatile boolean cancelled;
 	
 	private Date lastBuildDate;
 	
@@ -226,33 +315,74 @@ public class RSSHandler extends DefaultHandler {
 	
 	private boolean efficientFeedParsing;
 	
-	private boolean authorTagEntered;
-	
 	private StringBuilder author;
 	
-	private boolean nameTagEntered;
+	private StringBuilder enclosureUrl;
 	
-	private boolean enclosureTagEntered;
+	private StringBuilder enclosureType;
 	
-	private boolean enclosureUrlTagEntered;
+	private StringBuilder enclosureLength;
 	
-	private boolean enclosureTypeTagEntered;
+	private EntryWriter entryWriter;
 	
-	private boolean enclosureLengthTagEntered;
+	private boolean fetchImages;
 	
-	private StringBuilder enclosureUrl;
+	/** The entries that have not been handed to the writer yet */
+	private EntryWriter.Batch batch;
 	
-	private StringBuilder enclosureType;
+	private FetchLog log;
 	
-	private StringBuilder enclosureLength;
+	/** The values of the feed that are written with the entries */
+	private ContentValues feedValues;
+	
+	/** The keys of the entries that exist or are queued, only kept for the efficient parsing */
+	private HashSet<String> entryKeys;
+	
+	private boolean entryKeysLoaded;
+	
+	/** The dates of the entries that are newer than the last update, used to learn the publishing rhythm */
+	private long[] publishDates;
+	
+	private int publishDateCount;
+	
+	private long newestEntryDate;
+	
+	/** The buffers of the ended fields, they are reused for the next fields and feeds */
+	private StringBuilder[] buffers;
+	
+	private int bufferCount;
+	
+	private int maxDescriptionLength;
+	
+	/** True if the part of a description above the maximum length is written to a file instead of being dropped */
+	private boolean keepFullDescriptions;
+	
+	/** True if the description has reached the maximum length */
+	private boolean descriptionFull;
+	
+	/** The writer of the full description or null if it is not written to a file */
+	private Writer contentWriter;
+	
+	private File contentTempFile;
+	
+	/** True if there may be full descriptions of the feed that have to be removed once they are short again */
+	private boolean contentFilesExist;
 	
 	public RSSHandler(Context context) {
 		KEEP_TIME = Long.parseLong(PreferenceManager.getDefaultSharedPreferences(context).getString(Strings.SETTINGS_KEEPTIME, "4"))*86400000l;
 		this.context = context;
 		this.efficientFeedParsing = true;
+		entityDecoder = new EntityDecoder();
+		htmlSanitizer = new HtmlSanitizer();
+		publishDates = new long[MAX_PUBLISHDATES];
+		buffers = new StringBuilder[MAX_POOLEDBUFFERS];
+		maxDescriptionLength = DEFAULT_MAXDESCRIPTIONLENGTH;
 	}
 	
-	public void init(Date lastUpdateDate, final String id, String title, String url) {
+	/**
+	 * @param log the log of the refresh, it is saved once the entries are written
+	 */
+	public void init(Date lastUpdateDate, final String id, String title, String url, FetchLog log) {
 		final long keepDateBorderTime = KEEP_TIME > 0 ? System.currentTimeMillis()-KEEP_TIME : 0;
 		
 		keepDateBorder = new Date(keepDateBorderTime);
@@ -262,46 +392,33 @@ public class RSSHandler extends DefaultHandler {
 		
 		final String query = new StringBuilder(FeedData.EntryColumns.DATE).append('<').append(keepDateBorderTime).append(DB_FAVORITE).toString();
 		
-		FeedData.deletePicturesOfFeed(context, feedEntiresUri, query);
-		
-		context.getContentResolver().delete(feedEntiresUri, query, null);
-		newCount = 0;
+		this.log = log;
+		batch = new EntryWriter.Batch(id, log);
+		batch.setDeleteSelection(query); // the old entries are deleted by the writer as well
+		feedValues = new ContentValues();
+		entryKeys = new HashSet<String>();
+		entryKeysLoaded = false;
+		entryCount = 0;
 		feedRefreshed = false;
 		feedTitle = title;
 		initFeedBaseUrl(url);
-		this.title = null;
-		this.dateStringBuilder = null;
-		this.entryLink = null;
-		this.description = null;
-		this.enclosure = null;
+		recycleFields();
+		closeContentWriter(false);
+		contentTempFile = new File(FeedDataContentProvider.CONTENTFOLDER_FILE, new StringBuilder(id).append(TEMPFILE_SUFFIX).toString());
+		contentFilesExist = FeedDataContentProvider.CONTENTFOLDER_FILE.exists();
 		inputStream = null;
 		reader = null;
 		entryDate = null;
 		lastBuildDate = null;
 		realLastUpdate = lastUpdateDate.getTime();
+		publishDateCount = 0;
+		newestEntryDate = 0;
 		
 		done = false;
 		cancelled = false;
 		
-		titleTagEntered = false;
-		updatedTagEntered = false;
-		linkTagEntered = false;
-		descriptionTagEntered = false;
-		pubDateTagEntered = false;
-		dateTagEntered = false;
-		lastUpdateDateTagEntered = false;
+		fields = 0;
 		now = System.currentTimeMillis();
-		guid = null;
-		guidTagEntered = false;
-		authorTagEntered = false;
-		author = null;
-		enclosureTagEntered = false;
-		enclosureUrlTagEntered = false;
-		enclosureUrl = null;
-		enclosureTypeTagEntered = false;
-		enclosureType = null;
-		enclosureLengthTagEntered = false;
-		enclosureLength = null;
 	}
 	
 	public void initFeedBaseUrl(String url) {
@@ -316,349 +433,637 @@ public class RSSHandler extends DefaultHandler {
 
 	@Override
 	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-		if (TAG_UPDATED.equals(localName)) {
-			updatedTagEntered = true;
-			dateStringBuilder = new StringBuilder();
-		} else if (TAG_ENTRY.equals(localName) || TAG_ITEM.equals(localName)) {
-			description = null;
-			entryLink = null;
-			if (!feedRefreshed) {
-				ContentValues values = new ContentValues();
-				
-				if (feedTitle == null && title != null && title.length() > 0) {
-					values.put(FeedData.FeedColumns.NAME, title.toString().trim());
+		switch (getElement(localName)) {
+			case ELEMENT_UPDATED : {
+				fields |= FIELD_UPDATED;
+				dateStringBuilder = reuse(dateStringBuilder);
+				break;
+			}
+			case ELEMENT_ENTRY : {
+				recycle(description);
+				description = null;
+				recycle(entryLink);
+				entryLink = null;
+				if (!feedRefreshed) {
+					if (feedTitle == null && title != null && title.length() > 0) {
+						feedValues.put(FeedData.FeedColumns.NAME, title.toString().trim());
+					}
+					feedValues.put(FeedData.FeedColumns.ERROR, (String) null);
+					feedValues.put(FeedData.FeedColumns.LASTUPDATE, System.currentTimeMillis() - 1000);
+					if (lastBuildDate != null) {
+						realLastUpdate = Math.max(entryDate != null && entryDate.after(lastBuildDate) ? entryDate.getTime() : lastBuildDate.getTime(), realLastUpdate);
+					} else {
+						realLastUpdate = Math.max(entryDate != null ? entryDate.getTime() : System.currentTimeMillis() - 1000, realLastUpdate);
+					}
+					feedValues.put(FeedData.FeedColumns.REALLASTUPDATE, realLastUpdate);
+					recycle(title);
+					title = null;
+					feedRefreshed = true;
 				}
-				values.put(FeedData.FeedColumns.ERROR, (String) null);
-				values.put(FeedData.FeedColumns.LASTUPDATE, System.currentTimeMillis() - 1000);
-				if (lastBuildDate != null) {
-					realLastUpdate = Math.max(entryDate != null && entryDate.after(lastBuildDate) ? entryDate.getTime() : lastBuildDate.getTime(), realLastUpdate);
-				} else {
-					realLastUpdate = Math.max(entryDate != null ? entryDate.getTime() : System.currentTimeMillis() - 1000, realLastUpdate);
+				break;
+			}
+			case ELEMENT_TITLE : {
+				if (title == null) {
+					fields |= FIELD_TITLE;
+					title = obtainBuffer();
 				}
-				values.put(FeedData.FeedColumns.REALLASTUPDATE, realLastUpdate);
-				context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(id), values, null, null);
-				title = null;
-				feedRefreshed = true;
-			}
-		} else if (TAG_TITLE.equals(localName)) {
-			if (title == null) {
-				titleTagEntered = true;
-				title = new StringBuilder();
-			}
-		} else if (TAG_LINK.equals(localName)) {
-			if (authorTagEntered) {
-				return;
-			}
-			if (TAG_ENCLOSURE.equals(attributes.getValue(Strings.EMPTY, ATTRIBUTE_REL))) {
-				startEnclosure(attributes, attributes.getValue(Strings.EMPTY, ATTRIBUTE_HREF));
-			} else if (entryLink == null || qName.equals(localName)) {
-				// this indicates either there is no link yet or it is a non prefix tag which is preferred
-				entryLink = new StringBuilder();
-				
-				boolean foundLink = false;
-				
-				for (int n = 0, i = attributes.getLength(); n < i; n++) {
-					if (ATTRIBUTE_HREF.equals(attributes.getLocalName(n))) {
-						if (attributes.getValue(n) != null) {
-							entryLink.append(attributes.getValue(n));
-							foundLink = true;
-							linkTagEntered = false;
-						} else {
-							linkTagEntered = true;
-						}
-						break;
-					}
+				break;
+			}
+			case ELEMENT_LINK : {
+				if ((fields & FIELD_AUTHOR) == 0) {
+					startLink(attributes, qName.equals(localName));
+				}
+				break;
+			}
+			case ELEMENT_DESCRIPTION : {
+				if (!TAG_MEDIA_DESCRIPTION.equals(qName)) {
+					startDescription();
+				}
+				break;
+			}
+			case ELEMENT_CONTENT : {
+				if (!TAG_MEDIA_CONTENT.equals(qName)) {
+					startDescription();
 				}
-				if (!foundLink) {
-					linkTagEntered = true;
+				break;
+			}
+			case ELEMENT_SUMMARY : {
+				if (description == null) {
+					startDescription();
 				}
+				break;
+			}
+			case ELEMENT_PUBDATE : {
+				fields |= FIELD_PUBDATE;
+				dateStringBuilder = reuse(dateStringBuilder);
+				break;
+			}
+			case ELEMENT_DATE : {
+				fields |= FIELD_DATE;
+				dateStringBuilder = reuse(dateStringBuilder);
+				break;
+			}
+			case ELEMENT_LASTBUILDDATE : {
+				fields |= FIELD_LASTBUILDDATE;
+				dateStringBuilder = reuse(dateStringBuilder);
+				break;
 			}
-		} else if ((TAG_DESCRIPTION.equals(localName) && !TAG_MEDIA_DESCRIPTION.equals(qName)) || (TAG_CONTENT.equals(localName) && !TAG_MEDIA_CONTENT.equals(qName))) {
-			descriptionTagEntered = true;
-			description = new StringBuilder();
-		} else if (TAG_SUMMARY.equals(localName)) {
-			if (description == null) {
-				descriptionTagEntered = true;
-				description = new StringBuilder();
-			}
-		} else if (TAG_PUBDATE.equals(localName)) {
-			pubDateTagEntered = true;
-			dateStringBuilder = new StringBuilder();
-		} else if (TAG_DATE.equals(localName)) {
-			dateTagEntered = true;
-			dateStringBuilder = new StringBuilder();
-		} else if (TAG_LASTBUILDDATE.equals(localName)) {
-			lastUpdateDateTagEntered = true;
-			dateStringBuilder = new StringBuilder();
-		} else if (TAG_ENCODEDCONTENT.equals(localName)) {
-			descriptionTagEntered = true;
-			description = new StringBuilder();
-		} else if (TAG_ENCLOSURE.equals(localName)) {
-			enclosureTagEntered = true;
-			startEnclosure(attributes, attributes.getValue(Strings.EMPTY, ATTRIBUTE_URL));
-		} else if (TAG_GUID.equals(localName)) {
-			guidTagEntered = true;
-			guid = new StringBuilder();
-		} else if (TAG_AUTHOR.equals(localName) || TAG_CREATOR.equals(localName)) {
-			authorTagEntered = true;
-			if (TAG_CREATOR.equals(localName)) {
-				nameTagEntered = true; // we simulate the existence of a name tag to trigger the characters(..) method
-			}
-			if (author == null) {
-				author = new StringBuilder();
-			} else if (author.length() > 0){
-				// this indicates multiple authors
-				author.append(Strings.COMMASPACE);
-			}
-		} else if (TAG_NAME.equals(localName)) {
-			nameTagEntered = true;
-		} else if (enclosureTagEntered) {
-			if (TAG_ENCLOSUREURL.equals(localName)) {
-				enclosureUrlTagEntered = true;
-				enclosureUrl = new StringBuilder();
-			} else if (TAG_ENCLOSURETYPE.equals(localName)) {
-				enclosureTypeTagEntered = true;
-				enclosureType = new StringBuilder();
-			} else if (TAG_ENCLOSURELENGTH.equals(localName)) {
-				enclosureLengthTagEntered = true;
-				enclosureLength = new StringBuilder();
+			case ELEMENT_ENCODEDCONTENT : {
+				startDescription();
+				break;
+			}
+			case ELEMENT_ENCLOSURE : {
+				fields |= FIELD_ENCLOSURE;
+				startEnclosure(attributes, ATTRIBUTE_URL);
+				break;
+			}
+			case ELEMENT_GUID : {
+				fields |= FIELD_GUID;
+				guid = reuse(guid);
+				break;
+			}
+			case ELEMENT_CREATOR : {
+				fields |= FIELD_NAME; // we simulate the existence of a name tag to trigger the characters(..) method
+				startAuthor();
+				break;
+			}
+			case ELEMENT_AUTHOR : {
+				startAuthor();
+				break;
+			}
+			case ELEMENT_NAME : {
+				fields |= FIELD_NAME;
+				updateAuthorNameField();
+				break;
+			}
+			case ELEMENT_ENCLOSUREURL : {
+				if ((fields & FIELD_ENCLOSURE) != 0) {
+					fields |= FIELD_ENCLOSUREURL;
+					enclosureUrl = reuse(enclosureUrl);
+				}
+				break;
+			}
+			case ELEMENT_ENCLOSURETYPE : {
+				if ((fields & FIELD_ENCLOSURE) != 0) {
+					fields |= FIELD_ENCLOSURETYPE;
+					enclosureType = reuse(enclosureType);
+				}
+				break;
+			}
+			case ELEMENT_ENCLOSURELENGTH : {
+				if ((fields & FIELD_ENCLOSURE) != 0) {
+					fields |= FIELD_ENCLOSURELENGTH;
+					enclosureLength = reuse(enclosureLength);
+				}
+				break;
 			}
 		}
 	}
 	
-	private void startEnclosure(Attributes attributes, String url) {
-		if (enclosure == null && url != null && url.length() > 0) { // fetch the first enclosure only
-			enclosure = new StringBuilder(url);
-			enclosure.append(Strings.ENCLOSURE_SEPARATOR);
+	/**
+	 * @return the ELEMENT_ constant of the element or 0 if it is not handled
+	 */
+	private static int getElement(String localName) {
+		Integer element = ELEMENTS.get(localName);
+		
+		return element != null ? element.intValue() : 0;
+	}
+	
+	/**
+	 * Reads the attributes of a link in a single pass.
+	 * 
+	 * @param preferred true if the link has no prefix, such a link replaces an earlier one
+	 */
+	private void startLink(Attributes attributes, boolean preferred) {
+		String rel = null;
+		
+		String href = null;
+		
+		boolean foundHref = false;
+		
+		for (int n = 0, i = attributes.getLength(); n < i; n++) {
+			String name = attributes.getLocalName(n);
 			
-			String value = attributes.getValue(Strings.EMPTY, ATTRIBUTE_TYPE);
+			if (ATTRIBUTE_HREF.equals(name)) {
+				if (!foundHref) {
+					href = attributes.getValue(n);
+					foundHref = true;
+				}
+			} else if (rel == null && ATTRIBUTE_REL.equals(name) && attributes.getURI(n).length() == 0) {
+				rel = attributes.getValue(n);
+			}
+		}
+		if (TAG_ENCLOSURE.equals(rel)) {
+			startEnclosure(attributes, ATTRIBUTE_HREF);
+		} else if (entryLink == null || preferred) {
+			// this indicates either there is no link yet or it is a non prefix tag which is preferred
+			entryLink = reuse(entryLink);
+			if (href != null) {
+				entryLink.append(href);
+				fields &= ~FIELD_LINK;
+			} else {
+				fields |= FIELD_LINK;
+			}
+		}
+	}
+	
+	/**
+	 * Reads the url, type and length of an enclosure in a single pass.
+	 * 
+	 * @param urlAttribute the name of the attribute that holds the url
+	 */
+	private void startEnclosure(Attributes attributes, String urlAttribute) {
+		if (enclosure == null) { // fetch the first enclosure only
+			String url = null;
 			
-			if (value != null) {
-				enclosure.append(value);
+			String type = null;
+			
+			String length = null;
+			
+			for (int n = 0, i = attributes.getLength(); n < i; n++) {
+				if (attributes.getURI(n).length() == 0) {
+					String name = attributes.getLocalName(n);
+					
+					if (url == null && urlAttribute.equals(name)) {
+						url = attributes.getValue(n);
+					} else if (type == null && ATTRIBUTE_TYPE.equals(name)) {
+						type = attributes.getValue(n);
+					} else if (length == null && ATTRIBUTE_LENGTH.equals(name)) {
+						length = attributes.getValue(n);
+					}
+				}
 			}
-			enclosure.append(Strings.ENCLOSURE_SEPARATOR);
-			value = attributes.getValue(Strings.EMPTY, ATTRIBUTE_LENGTH);
-			if (value != null) {
-				enclosure.append(value);
+			if (url != null && url.length() > 0) {
+				enclosure = obtainBuffer().append(url);
+				enclosure.append(Strings.ENCLOSURE_SEPARATOR);
+				if (type != null) {
+					enclosure.append(type);
+				}
+				enclosure.append(Strings.ENCLOSURE_SEPARATOR);
+				if (length != null) {
+					enclosure.append(length);
+				}
 			}
 		}
 	}
+	
+	private void startAuthor() {
+		fields |= FIELD_AUTHOR;
+		updateAuthorNameField();
+		if (author == null) {
+			author = obtainBuffer();
+		} else if (author.length() > 0){
+			// this indicates multiple authors
+			author.append(Strings.COMMASPACE);
+		}
+	}
+	
+	private void updateAuthorNameField() {
+		if ((fields & FIELD_AUTHOR) != 0 && (fields & FIELD_NAME) != 0) {
+			fields |= FIELD_AUTHORNAME;
+		} else {
+			fields &= ~FIELD_AUTHORNAME;
+		}
+	}
 
 	@Override
 	public void characters(char[] ch, int start, int length) throws SAXException {
-		if (titleTagEntered) {
-			title.append(ch, start, length);
-		} else if (updatedTagEntered) {
-			dateStringBuilder.append(ch, start, length);
-		} else if (linkTagEntered) {
-			entryLink.append(ch, start, length);
-		} else if (descriptionTagEntered) {
-			description.append(ch, start, length);
-		} else if (pubDateTagEntered) {
-			dateStringBuilder.append(ch, start, length);
-		} else if (dateTagEntered) {
-			dateStringBuilder.append(ch, start, length);
-		} else if (lastUpdateDateTagEntered) {
-			dateStringBuilder.append(ch, start, length);
-		} else if (guidTagEntered) {
-			guid.append(ch, start, length);
-		} else if (authorTagEntered && nameTagEntered) {
-			author.append(ch, start, length);
-		} else if (enclosureUrlTagEntered) {
-			enclosureUrl.append(ch, start, length);
-		} else if (enclosureTypeTagEntered) {
-			enclosureType.append(ch, start, length);
-		} else if (enclosureLengthTagEntered) {
-			enclosureLength.append(ch, start, length);
+		switch (fields & -fields) { // the lowest bit
+			case FIELD_TITLE : {
+				append(title, ch, start, length, MAX_TITLELENGTH);
+				break;
+			}
+			case FIELD_UPDATED :
+			case FIELD_PUBDATE :
+			case FIELD_DATE :
+			case FIELD_LASTBUILDDATE : {
+				append(dateStringBuilder, ch, start, length, MAX_DATELENGTH);
+				break;
+			}
+			case FIELD_LINK : {
+				append(entryLink, ch, start, length, MAX_LINKLENGTH);
+				break;
+			}
+			case FIELD_DESCRIPTION : {
+				appendDescription(ch, start, length);
+				break;
+			}
+			case FIELD_GUID : {
+				append(guid, ch, start, length, MAX_GUIDLENGTH);
+				break;
+			}
+			case FIELD_AUTHORNAME : {
+				append(author, ch, start, length, MAX_AUTHORLENGTH);
+				break;
+			}
+			case FIELD_ENCLOSUREURL : {
+				append(enclosureUrl, ch, start, length, MAX_ENCLOSUREURLLENGTH);
+				break;
+			}
+			case FIELD_ENCLOSURETYPE : {
+				append(enclosureType, ch, start, length, MAX_ENCLOSURETYPELENGTH);
+				break;
+			}
+			case FIELD_ENCLOSURELENGTH : {
+				append(enclosureLength, ch, start, length, MAX_ENCLOSURELENGTHLENGTH);
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Appends the characters as far as the builder stays within the maximum length.
+	 */
+	private static void append(StringBuilder builder, char[] ch, int start, int length, int maxLength) {
+		int free = maxLength - builder.length();
+		
+		if (free > 0) {
+			builder.append(ch, start, length < free ? length : free);
+		}
+	}
+	
+	private void startDescription() {
+		fields |= FIELD_DESCRIPTION;
+		description = reuse(description);
+		descriptionFull = false;
+		closeContentWriter(false);
+	}
+	
+	/**
+	 * Appends the characters to the description. The part above the maximum length
+	 * is written to a file if full descriptions are kept and dropped otherwise.
+	 */
+	private void appendDescription(char[] ch, int start, int length) {
+		if (contentWriter != null) {
+			try {
+				contentWriter.write(ch, start, length);
+			} catch (IOException e) {
+				closeContentWriter(false);
+			}
+		} else if (!descriptionFull) {
+			int free = maxDescriptionLength - description.length();
+			
+			if (length <= free) {
+				description.append(ch, start, length);
+			} else {
+				description.append(ch, start, free);
+				descriptionFull = true;
+				if (keepFullDescriptions) {
+					try {
+						FeedDataContentProvider.CONTENTFOLDER_FILE.mkdirs();
+						contentWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(contentTempFile), UTF8));
+						contentWriter.append(description);
+						contentWriter.write(ch, start+free, length-free);
+					} catch (IOException e) {
+						closeContentWriter(false);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @param keep true if the written description is complete, otherwise the file is deleted
+	 * @return true if the file holds the full description
+	 */
+	private boolean closeContentWriter(boolean keep) {
+		if (contentWriter != null) {
+			try {
+				contentWriter.close();
+			} catch (IOException e) {
+				keep = false;
+			}
+			contentWriter = null;
+			if (!keep) {
+				contentTempFile.delete();
+			}
+			return keep;
+		} else {
+			return false;
 		}
 	}
 	
 	@Override
 	public void endElement(String uri, String localName, String qName) throws SAXException {
-		if (TAG_TITLE.equals(localName)) {
-			titleTagEntered = false;
-		} else if ((TAG_DESCRIPTION.equals(localName) && !TAG_MEDIA_DESCRIPTION.equals(qName)) || TAG_SUMMARY.equals(localName) || (TAG_CONTENT.equals(localName) && !TAG_MEDIA_CONTENT.equals(qName)) || TAG_ENCODEDCONTENT.equals(localName)) {
-			descriptionTagEntered = false;
-		} else if (TAG_LINK.equals(localName)) {
-			linkTagEntered = false;
-		} else if (TAG_UPDATED.equals(localName)) {
-			entryDate = parseUpdateDate(dateStringBuilder.toString());
-			updatedTagEntered = false;
-		} else if (TAG_PUBDATE.equals(localName)) {
-			entryDate = parsePubdateDate(dateStringBuilder.toString().replace(Strings.TWOSPACE, Strings.SPACE));
-			pubDateTagEntered = false;
-		} else if (TAG_LASTBUILDDATE.equals(localName)) {
-			lastBuildDate = parsePubdateDate(dateStringBuilder.toString().replace(Strings.TWOSPACE, Strings.SPACE));
-			lastUpdateDateTagEntered = false;
-		} else if (TAG_DATE.equals(localName)) {
-			entryDate = parseUpdateDate(dateStringBuilder.toString());
-			dateTagEntered = false;
-		} else if (TAG_ENTRY.equals(localName) || TAG_ITEM.equals(localName)) {
-			if (title != null && (entryDate == null || ((entryDate.after(lastUpdateDate) || !efficientFeedParsing) && entryDate.after(keepDateBorder)))) {
-				ContentValues values = new ContentValues();
-				
-				if (entryDate != null && entryDate.getTime() > realLastUpdate) {
-					realLastUpdate = entryDate.getTime();
-					
-					values.put(FeedData.FeedColumns.REALLASTUPDATE, realLastUpdate);
-					context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(id), values, null, null);
-					values.clear();
-				}
-				
-				if (entryDate != null) {
-					values.put(FeedData.EntryColumns.DATE, entryDate.getTime());
-					values.putNull(FeedData.EntryColumns.READDATE);
+		switch (getElement(localName)) {
+			case ELEMENT_TITLE : {
+				fields &= ~FIELD_TITLE;
+				break;
+			}
+			case ELEMENT_DESCRIPTION : {
+				if (!TAG_MEDIA_DESCRIPTION.equals(qName)) {
+					fields &= ~FIELD_DESCRIPTION;
 				}
-				values.put(FeedData.EntryColumns.TITLE, unescapeString(title.toString().trim()));
-				
-				if (author != null) {
-					values.put(FeedData.EntryColumns.AUTHOR, unescapeString(author.toString()));
+				break;
+			}
+			case ELEMENT_CONTENT : {
+				if (!TAG_MEDIA_CONTENT.equals(qName)) {
+					fields &= ~FIELD_DESCRIPTION;
 				}
-				
-				Vector<String> images = null;
-				
-				if (description != null) {
-					String descriptionString = description.toString().trim().replaceAll(Strings.HTML_SPAN_REGEX, Strings.EMPTY);
-					
-					if (descriptionString.length() > 0) {
-						if (fetchImages) {
-							images = new Vector<String>(4);
-							
-							Matcher matcher = imgPattern.matcher(description);
-							
-							while (matcher.find()) {
-								String match = matcher.group(1).replace(Strings.SPACE, Strings.URL_SPACE);
-								
-								images.add(match);
-								try {
-									// replace the '%' that may occur while urlencode such that the img-src url (in the abstract text) does reinterpret the parameters
-									descriptionString = descriptionString.replace(match, new StringBuilder(Strings.FILEURL).append(FeedDataContentProvider.IMAGEFOLDER).append(Strings.IMAGEID_REPLACEMENT).append(URLEncoder.encode(match.substring(match.lastIndexOf('/')+1), UTF8)).toString().replace(PERCENT, PERCENT_REPLACE));
-								} catch (UnsupportedEncodingException e) {
-									// UTF-8 should be supported
-								}
-							}
-						}
-						values.put(FeedData.EntryColumns.ABSTRACT, descriptionString);
-					}
+				break;
+			}
+			case ELEMENT_SUMMARY :
+			case ELEMENT_ENCODEDCONTENT : {
+				fields &= ~FIELD_DESCRIPTION;
+				break;
+			}
+			case ELEMENT_LINK : {
+				fields &= ~FIELD_LINK;
+				break;
+			}
+			case ELEMENT_UPDATED : {
+				entryDate = parseDate(dateStringBuilder);
+				fields &= ~FIELD_UPDATED;
+				break;
+			}
+			case ELEMENT_PUBDATE : {
+				entryDate = parseDate(dateStringBuilder);
+				fields &= ~FIELD_PUBDATE;
+				break;
+			}
+			case ELEMENT_LASTBUILDDATE : {
+				lastBuildDate = parseDate(dateStringBuilder);
+				fields &= ~FIELD_LASTBUILDDATE;
+				break;
+			}
+			case ELEMENT_DATE : {
+				entryDate = parseDate(dateStringBuilder);
+				fields &= ~FIELD_DATE;
+				break;
+			}
+			case ELEMENT_ENTRY : {
+				endEntry();
+				break;
+			}
+			case ELEMENT_FEED : {
+				done = true;
+				break;
+			}
+			case ELEMENT_GUID : {
+				fields &= ~FIELD_GUID;
+				break;
+			}
+			case ELEMENT_NAME : {
+				fields &= ~FIELD_NAME;
+				updateAuthorNameField();
+				break;
+			}
+			case ELEMENT_AUTHOR :
+			case ELEMENT_CREATOR : {
+				fields &= ~FIELD_AUTHOR;
+				updateAuthorNameField();
+				break;
+			}
+			case ELEMENT_ENCLOSURE : {
+				fields &= ~FIELD_ENCLOSURE;
+				break;
+			}
+			case ELEMENT_ENCLOSUREURL : {
+				fields &= ~FIELD_ENCLOSUREURL;
+				break;
+			}
+			case ELEMENT_ENCLOSURETYPE : {
+				fields &= ~FIELD_ENCLOSURETYPE;
+				break;
+			}
+			case ELEMENT_ENCLOSURELENGTH : {
+				fields &= ~FIELD_ENCLOSURELENGTH;
+				break;
+			}
+		}
+	}
+	
+	private void endEntry() {
+		entryCount++;
+		if (entryDate != null && entryDate.getTime() <= now) { // entries from the future would distort the intervals
+			long time = entryDate.getTime();
+			
+			newestEntryDate = Math.max(newestEntryDate, time);
+			if (entryDate.after(lastUpdateDate) && publishDateCount < MAX_PUBLISHDATES) {
+				publishDates[publishDateCount++] = time;
+			}
+		}
+		if (title != null && (entryDate == null || ((entryDate.after(lastUpdateDate) || !efficientFeedParsing) && entryDate.after(keepDateBorder)))) {
+			ContentValues values = new ContentValues();
+			
+			if (entryDate != null && entryDate.getTime() > realLastUpdate) {
+				realLastUpdate = entryDate.getTime();
+				feedValues.put(FeedData.FeedColumns.REALLASTUPDATE, realLastUpdate);
+			}
+			
+			if (entryDate != null) {
+				values.put(FeedData.EntryColumns.DATE, entryDate.getTime());
+				values.putNull(FeedData.EntryColumns.READDATE);
+			}
+			values.put(FeedData.EntryColumns.TITLE, entityDecoder.decode(title));
+			
+			if (author != null) {
+				values.put(FeedData.EntryColumns.AUTHOR, entityDecoder.decode(author));
+			}
+			
+			Vector<String> images = null;
+			
+			if (description != null) {
+				if (fetchImages) {
+					images = new Vector<String>(4); // the text keeps the urls, the stored images replace them when the entry is shown
 				}
 				
-				String enclosureString = null;
+				String descriptionString = htmlSanitizer.sanitize(description, images);
 				
-				StringBuilder existanceStringBuilder = new StringBuilder(FeedData.EntryColumns.LINK).append(Strings.DB_ARG);
-				
-				if (enclosure == null && enclosureUrl != null && enclosureUrl.length() > 0) {
-					enclosure = enclosureUrl;
-					enclosure.append(Strings.ENCLOSURE_SEPARATOR);
-					if (enclosureType != null && enclosureType.length() > 0) {
-						enclosure.append(enclosureType);
-					}
-					enclosure.append(Strings.ENCLOSURE_SEPARATOR);
-					if (enclosureLength != null && enclosureLength.length() > 0) {
-						enclosure.append(enclosureLength);
-					}
+				if (descriptionString.length() > 0) {
+					values.put(FeedData.EntryColumns.ABSTRACT, descriptionString);
 				}
-				
-				if (enclosure != null && enclosure.length() > 0) {
-					enclosureString = enclosure.toString();
-					values.put(FeedData.EntryColumns.ENCLOSURE, enclosureString);
-					existanceStringBuilder.append(Strings.DB_AND).append(FeedData.EntryColumns.ENCLOSURE).append(Strings.DB_ARG);
+			}
+			
+			String enclosureString = null;
+			
+			StringBuilder existanceStringBuilder = new StringBuilder(FeedData.EntryColumns.LINK).append(Strings.DB_ARG);
+			
+			if (enclosure == null && enclosureUrl != null && enclosureUrl.length() > 0) {
+				enclosure = enclosureUrl;
+				enclosureUrl = null; // the buffer is recycled as the enclosure
+				enclosure.append(Strings.ENCLOSURE_SEPARATOR);
+				if (enclosureType != null && enclosureType.length() > 0) {
+					enclosure.append(enclosureType);
 				}
-				
-				String guidString = null;
-				
-				if (guid != null && guid.length() > 0) {
-					guidString = guid.toString();
-					values.put(FeedData.EntryColumns.GUID, guidString);
-					existanceStringBuilder.append(Strings.DB_AND).append(FeedData.EntryColumns.GUID).append(Strings.DB_ARG);
+				enclosure.append(Strings.ENCLOSURE_SEPARATOR);
+				if (enclosureLength != null && enclosureLength.length() > 0) {
+					enclosure.append(enclosureLength);
 				}
-				
-				String entryLinkString = Strings.EMPTY; // don't set this to null as we need *some* value
-				
-				if (entryLink != null &&  entryLink.length() > 0) {
-					entryLinkString = entryLink.toString().trim();
-					if (feedBaseUrl != null && !entryLinkString.startsWith(Strings.HTTP) && !entryLinkString.startsWith(Strings.HTTPS)) {
-						entryLinkString = feedBaseUrl + (entryLinkString.startsWith(Strings.SLASH) ? entryLinkString : Strings.SLASH + entryLinkString);
-					}
+			}
+			
+			if (enclosure != null && enclosure.length() > 0) {
+				enclosureString = enclosure.toString();
+				values.put(FeedData.EntryColumns.ENCLOSURE, enclosureString);
+				existanceStringBuilder.append(Strings.DB_AND).append(FeedData.EntryColumns.ENCLOSURE).append(Strings.DB_ARG);
+			}
+			
+			String guidString = null;
+			
+			if (guid != null && guid.length() > 0) {
+				guidString = guid.toString();
+				values.put(FeedData.EntryColumns.GUID, guidString);
+				existanceStringBuilder.append(Strings.DB_AND).append(FeedData.EntryColumns.GUID).append(Strings.DB_ARG);
+			}
+			
+			String entryLinkString = Strings.EMPTY; // don't set this to null as we need *some* value
+			
+			if (entryLink != null &&  entryLink.length() > 0) {
+				entryLinkString = entryLink.toString().trim();
+				if (feedBaseUrl != null && !entryLinkString.startsWith(Strings.HTTP) && !entryLinkString.startsWith(Strings.HTTPS)) {
+					entryLinkString = feedBaseUrl + (entryLinkString.startsWith(Strings.SLASH) ? entryLinkString : Strings.SLASH + entryLinkString);
 				}
-				
-				String[] existanceValues = enclosureString != null ? (guidString != null ? new String[] {entryLinkString, enclosureString, guidString}: new String[] {entryLinkString, enclosureString}) : (guidString != null ? new String[] {entryLinkString, guidString} : new String[] {entryLinkString});
-				
-				boolean skip = false;
-				
-				if (!efficientFeedParsing) {
-					if (context.getContentResolver().update(feedEntiresUri, values, existanceStringBuilder.toString()+" AND "+FeedData.EntryColumns.DATE+"<"+entryDate.getTime(), existanceValues) == 1) {
-						newCount++;
-						skip = true;
-					} else {
-						values.remove(FeedData.EntryColumns.READDATE);
-						// continue with the standard procedure but don't reset the read-date
-					}
+			}
+			
+			String[] existanceValues = enclosureString != null ? (guidString != null ? new String[] {entryLinkString, enclosureString, guidString}: new String[] {entryLinkString, enclosureString}) : (guidString != null ? new String[] {entryLinkString, guidString} : new String[] {entryLinkString});
+			
+			boolean checkExistance = entryLinkString.length() > 0 || guidString != null;
+			
+			boolean exists = false;
+			
+			if (efficientFeedParsing && checkExistance) {
+				/* an existing entry without date indicates that the rest of the feed is known */
+				if (entryDate == null) {
+					loadEntryKeys();
+					exists = entryKeys.contains(getEntryKey(entryLinkString, enclosureString, guidString));
 				}
+				addEntryKeys(entryLinkString, enclosureString, guidString);
+			}
+			if (closeContentWriter(true)) {
+				String contentFile = getContentFile(entryLinkString, enclosureString, guidString);
 				
-				if (!skip && ((entryLinkString.length() == 0 && guidString == null) || context.getContentResolver().update(feedEntiresUri, values, existanceStringBuilder.toString(), existanceValues) == 0)) {
-					values.put(FeedData.EntryColumns.LINK, entryLinkString);
-					if (entryDate == null) {
-						values.put(FeedData.EntryColumns.DATE, now--);
-					}
-					
-					String entryId = context.getContentResolver().insert(feedEntiresUri, values).getLastPathSegment();
-					
-					if (fetchImages) {
-						FeedDataContentProvider.IMAGEFOLDER_FILE.mkdir(); // create images dir
-						for (int n = 0, i = images != null ? images.size() : 0; n < i; n++) {
-							try {
-								String match = images.get(n);
-								
-								byte[] data = FetcherService.getBytes(new URL(images.get(n)).openStream());
-								
-								// see the comment where the img regex is executed for details about this replacement
-								FileOutputStream fos = new FileOutputStream(new StringBuilder(FeedDataContentProvider.IMAGEFOLDER).append(entryId).append(Strings.IMAGEFILE_IDSEPARATOR).append(URLEncoder.encode(match.substring(match.lastIndexOf('/')+1), UTF8)).toString().replace(PERCENT, PERCENT_REPLACE));
-								
-								fos.write(data);
-								fos.close();
-							} catch (Exception e) {
-
-							}
-						}
-					}
-					
-					newCount++;
-				} else if (entryDate == null && efficientFeedParsing) {
-					cancel();
+				if (contentTempFile.renameTo(new File(FeedDataContentProvider.CONTENTFOLDER_FILE, contentFile))) {
+					values.put(FeedData.EntryColumns.CONTENTFILE, contentFile);
+					contentFilesExist = true;
+				} else {
+					contentTempFile.delete();
 				}
-			} else if (efficientFeedParsing) {
+			} else if (contentFilesExist) {
+				/* the entry may have been too long before */
+				new File(FeedDataContentProvider.CONTENTFOLDER_FILE, getContentFile(entryLinkString, enclosureString, guidString)).delete();
+				values.putNull(FeedData.EntryColumns.CONTENTFILE);
+			}
+			batch.addEntry(values, entryLinkString, entryDate != null ? entryDate.getTime() : 0, entryDate == null ? now-- : 0, existanceStringBuilder.toString(), existanceValues, checkExistance, !efficientFeedParsing, images);
+			if (exists) {
 				cancel();
+			} else if (batch.size() >= MAX_BATCHENTRIES) {
+				flush();
 			}
-			description = null;
-			title = null;
-			enclosure = null;
-			guid = null;
-			author = null;
-			enclosureUrl = null;
-			enclosureType = null;
-			enclosureLength = null;
-			entryLink = null;
-		} else if (TAG_RSS.equals(localName) || TAG_RDF.equals(localName) || TAG_FEED.equals(localName)) {
-			done = true;
-		} else if (TAG_GUID.equals(localName)) {
-			guidTagEntered = false;
-		} else if (TAG_NAME.equals(localName)) {
-			nameTagEntered = false;
-		} else if (TAG_AUTHOR.equals(localName) || TAG_CREATOR.equals(localName)) {
-			authorTagEntered = false;
-		} else if (TAG_ENCLOSURE.equals(localName)) {
-			enclosureTagEntered = false;
-		} else if (TAG_ENCLOSUREURL.equals(localName)) {
-			enclosureUrlTagEntered = false;
-		} else if (TAG_ENCLOSURETYPE.equals(localName)) {
-			enclosureTypeTagEntered = false;
-		} else if (TAG_ENCLOSURELENGTH.equals(localName)) {
-			enclosureLengthTagEntered = false;
+		} else if (efficientFeedParsing) {
+			cancel();
 		}
+		closeContentWriter(false);
+		recycleFields();
 	}
 	
-	public int getNewCount() {
-		return newCount;
+	private void recycleFields() {
+		recycle(description);
+		description = null;
+		recycle(title);
+		title = null;
+		recycle(enclosure);
+		enclosure = null;
+		recycle(guid);
+		guid = null;
+		recycle(author);
+		author = null;
+		recycle(enclosureUrl);
+		enclosureUrl = null;
+		recycle(enclosureType);
+		enclosureType = null;
+		recycle(enclosureLength);
+		enclosureLength = null;
+		recycle(entryLink);
+		entryLink = null;
+		recycle(dateStringBuilder);
+		dateStringBuilder = null;
+	}
+	
+	private StringBuilder obtainBuffer() {
+		return bufferCount > 0 ? buffers[--bufferCount] : new StringBuilder();
+	}
+	
+	/**
+	 * @return the emptied buffer or a new one if it is null
+	 */
+	private StringBuilder reuse(StringBuilder buffer) {
+		if (buffer != null) {
+			buffer.setLength(0);
+			return buffer;
+		} else {
+			return obtainBuffer();
+		}
+	}
+	
+	/**
+	 * The buffer must not be used afterwards.
+	 */
+	private void recycle(StringBuilder buffer) {
+		if (buffer != null && bufferCount < MAX_POOLEDBUFFERS && buffer.capacity() <= MAX_POOLEDCAPACITY) {
+			buffer.setLength(0);
+			buffers[bufferCount++] = buffer;
+		}
+	}
+	
+	public int getEntryCount() {
+		return entryCount;
+	}
+	
+	/**
+	 * @return the dates of the parsed entries that are newer than the last update in no particular order
+	 */
+	public long[] getPublishDates() {
+		long[] result = new long[publishDateCount];
+		
+		System.arraycopy(publishDates, 0, result, 0, publishDateCount);
+		return result;
+	}
+	
+	/**
+	 * @return the date of the newest parsed entry or 0 if no parsed entry had a date
+	 */
+	public long getNewestEntryDate() {
+		return newestEntryDate;
 	}
 	
 	public boolean isDone() {
@@ -699,44 +1104,124 @@ public class RSSHandler extends DefaultHandler {
 		}
 	}
 
+	/**
+	 * @param entryWriter the writer that stores the parsed entries
+	 */
+	public void setEntryWriter(EntryWriter entryWriter) {
+		this.entryWriter = entryWriter;
+	}
+	
+	/**
+	 * @param fetchImages true if the images of new entries are extracted to be downloaded
+	 */
 	public void setFetchImages(boolean fetchImages) {
 		this.fetchImages = fetchImages;
 	}
 	
-	private static Date parseUpdateDate(String string) {
-		string = string.replace(Z, GMT);
-		for (int n = 0; n < DATEFORMAT_COUNT; n++) {
-			try {
-				return UPDATE_DATEFORMATS[n].parse(string);
-			} catch (ParseException e) { } // just do nothing
+	/**
+	 * Hands the remaining entries of the feed to the writer; calling it again
+	 * does nothing until the next init(..).
+	 * 
+	 * @param values the values of the feed that are written after the entries or null
+	 * @param saveLog true if the log is saved once the entries are written
+	 */
+	public void finish(ContentValues values, boolean saveLog) {
+		closeContentWriter(false); // the entry has not ended
+		if (batch != null) {
+			if (feedValues.size() > 0) {
+				batch.putFeedValues(feedValues);
+			}
+			if (values != null) {
+				batch.putFeedValues(values);
+			}
+			batch.setSaveLog(saveLog);
+			entryWriter.write(batch);
+			batch = null;
 		}
-		return null;
 	}
 	
-	private static Date parsePubdateDate(String string) {
-		for (int n = 0; n < TIMEZONES_COUNT; n++) {
-			string = string.replace(TIMEZONES[n], TIMEZONES_REPLACE[n]);
+	private void flush() {
+		if (feedValues.size() > 0) {
+			batch.putFeedValues(feedValues);
 		}
-		for (int n = 0; n < PUBDATEFORMAT_COUNT; n++) {
-			try {
-				return PUBDATE_DATEFORMATS[n].parse(string);
-			} catch (ParseException e) { } // just do nothing
+		entryWriter.write(batch);
+		batch = new EntryWriter.Batch(id, log);
+	}
+	
+	/**
+	 * Loads the keys of the stored entries that are not deleted by this refresh.
+	 */
+	private void loadEntryKeys() {
+		if (!entryKeysLoaded) {
+			entryKeysLoaded = true;
+			
+			Cursor cursor = context.getContentResolver().query(feedEntiresUri, PROJECTION_ENTRYKEY, new StringBuilder(FeedData.EntryColumns.DATE).append(">=").append(keepDateBorder.getTime()).append(" OR ").append(FeedData.EntryColumns.FAVORITE).append("=1").toString(), null, null);
+			
+			while (cursor.moveToNext()) {
+				addEntryKeys(cursor.isNull(0) ? Strings.EMPTY : cursor.getString(0), cursor.getString(1), cursor.getString(2));
+			}
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Adds the keys of every existance selection that matches the entry, i.e. with or
+	 * without its enclosure and guid.
+	 */
+	private void addEntryKeys(String link, String enclosure, String guid) {
+		entryKeys.add(getEntryKey(link, null, null));
+		if (enclosure != null) {
+			entryKeys.add(getEntryKey(link, enclosure, null));
+		}
+		if (guid != null) {
+			entryKeys.add(getEntryKey(link, null, guid));
+		}
+		if (enclosure != null && guid != null) {
+			entryKeys.add(getEntryKey(link, enclosure, guid));
 		}
-		return null;
 	}
 	
-	private static String unescapeString(String str) {
-		String result = str.replace(Strings.AMP_SG, Strings.AMP).replaceAll(Strings.HTML_TAG_REGEX, Strings.EMPTY).replace(Strings.HTML_LT, Strings.LT).replace(Strings.HTML_GT, Strings.GT).replace(Strings.HTML_QUOT, Strings.QUOT).replace(Strings.HTML_APOS, Strings.APOSTROPHE);
+	private static String getEntryKey(String link, String enclosure, String guid) {
+		StringBuilder builder = new StringBuilder(link).append(KEY_SEPARATOR);
 		
-		if (result.indexOf(ANDRHOMBUS) > -1) {
-			return Html.fromHtml(result, null, null).toString();
-		} else {
-			return result;
+		if (enclosure != null) {
+			builder.append(enclosure);
+		}
+		builder.append(KEY_SEPARATOR);
+		if (guid != null) {
+			builder.append(guid);
 		}
+		return builder.toString();
 	}
-
+	
+	/**
+	 * @return the name of the file of the full description, the same entry always gets the same name
+	 */
+	private String getContentFile(String link, String enclosure, String guid) {
+		return FeedData.getUrlHash(new StringBuilder(id).append(KEY_SEPARATOR).append(getEntryKey(link, enclosure, guid)).toString());
+	}
+	
+	private static Date parseDate(CharSequence value) {
+		long date = DateParser.parse(value);
+		
+		return date != DateParser.NONE ? new Date(date) : null;
+	}
+	
 	public void setEfficientFeedParsing(boolean efficientFeedParsing) {
 		this.efficientFeedParsing = efficientFeedParsing;
 	}
 	
+	public boolean isEfficientFeedParsing() {
+		return efficientFeedParsing;
+	}
+	
+	/**
+	 * @param maxDescriptionLength the number of characters of a description that are kept in the database
+	 * @param keepFullDescriptions true if longer descriptions are written to a file in full, otherwise they are truncated
+	 */
+	public void setMaxDescriptionLength(int maxDescriptionLength, boolean keepFullDescriptions) {
+		this.maxDescriptionLength = maxDescriptionLength;
+		this.keepFullDescriptions = keepFullDescriptions;
+	}
+	
 }
@@ -25,12 +25,8 @@
 
 package de.shandschuh.sparserss.provider;
 
-import java.io.File;
+import java.security.MessageDigest;
 
-import de.shandschuh.sparserss.handler.PictureFilenameFilter;
-
-import android.content.Context;
-import android.database.Cursor;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -51,6 +47,12 @@ public class FeedData {
 	
 	public static final String FEED_DEFAULTSORTORDER = FeedColumns.PRIORITY;
 	
+	public static final String MD5 = "MD5";
+	
+	private static final String UTF8 = "UTF-8";
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
 	public static class FeedColumns implements BaseColumns {
 		public static final Uri CONTENT_URI = Uri.parse(new StringBuilder(CONTENT).append(AUTHORITY).append("/feeds").toString());
 		
@@ -76,9 +78,32 @@ public class FeedData {
 		
 		public static final String HIDE_READ = "hide_read";
 		
-		public static final String[] COLUMNS = new String[] {_ID, URL, NAME, LASTUPDATE, ICON, ERROR, PRIORITY, FETCHMODE, REALLASTUPDATE, WIFIONLY, IMPOSE_USERAGENT, HIDE_READ};
+		/** The ETag header of the last successfully parsed response */
+		public static final String ETAG = "etag";
+		
+		/** The Last-Modified header of the last successfully parsed response */
+		public static final String LASTMODIFIED = "lastmodified";
+		
+		/** Smoothed time between two publications of the feed in milliseconds */
+		public static final String PUBLISHINTERVAL = "publishinterval";
+		
+		public static final String NEXTREFRESH = "nextrefresh";
+		
+		/** The host whose icon is shown for the feed, see {@link IconColumns} */
+		public static final String ICONHOST = "iconhost";
 		
-		public static final String[] TYPES = new String[] {TYPE_PRIMARY_KEY, "TEXT UNIQUE", TYPE_TEXT, TYPE_DATETIME, "BLOB", TYPE_TEXT, TYPE_INT, TYPE_INT, TYPE_DATETIME, TYPE_BOOLEAN, TYPE_BOOLEAN, TYPE_BOOLEAN};
+		/** The number of refreshes that failed in a row */
+		public static final String FAILURES = "failures";
+		
+		/** A failing feed is not refreshed before this date unless it is refreshed on its own */
+		public static final String BACKOFFUNTIL = "backoffuntil";
+		
+		/** The md5 hash of the last successfully parsed body */
+		public static final String BODYDIGEST = "bodydigest";
+		
+		public static final String[] COLUMNS = new String[] {_ID, URL, NAME, LASTUPDATE, ICON, ERROR, PRIORITY, FETCHMODE, REALLASTUPDATE, WIFIONLY, IMPOSE_USERAGENT, HIDE_READ, ETAG, LASTMODIFIED, PUBLISHINTERVAL, NEXTREFRESH, ICONHOST, FAILURES, BACKOFFUNTIL, BODYDIGEST};
+		
+		public static final String[] TYPES = new String[] {TYPE_PRIMARY_KEY, "TEXT UNIQUE", TYPE_TEXT, TYPE_DATETIME, "BLOB", TYPE_TEXT, TYPE_INT, TYPE_INT, TYPE_DATETIME, TYPE_BOOLEAN, TYPE_BOOLEAN, TYPE_BOOLEAN, TYPE_TEXT, TYPE_TEXT, TYPE_INT, TYPE_DATETIME, TYPE_TEXT, TYPE_INT, TYPE_DATETIME, TYPE_TEXT};
 		
 		public static final Uri CONTENT_URI(String feedId) {
 			return Uri.parse(new StringBuilder(CONTENT).append(AUTHORITY).append("/feeds/").append(feedId).toString());
@@ -87,6 +112,10 @@ public class FeedData {
 		public static final Uri CONTENT_URI(long feedId) {
 			return Uri.parse(new StringBuilder(CONTENT).append(AUTHORITY).append("/feeds/").append(feedId).toString());
 		}
+		
+		public static final Uri FETCHLOG_CONTENT_URI(String feedId) {
+			return Uri.parse(new StringBuilder(CONTENT).append(AUTHORITY).append("/feeds/").append(feedId).append("/fetchlog").toString());
+		}
 	}
 	
 	public static class EntryColumns implements BaseColumns {
@@ -110,9 +139,12 @@ public class FeedData {
 		
 		public static final String AUTHOR = "author";
 		
-		public static final String[] COLUMNS = new String[] {_ID, FEED_ID, TITLE, ABSTRACT, DATE, READDATE, LINK, FAVORITE, ENCLOSURE, GUID, AUTHOR};
+		/** The file in the content folder that holds the full abstract if it is too long for the database, null otherwise */
+		public static final String CONTENTFILE = "contentfile";
+		
+		public static final String[] COLUMNS = new String[] {_ID, FEED_ID, TITLE, ABSTRACT, DATE, READDATE, LINK, FAVORITE, ENCLOSURE, GUID, AUTHOR, CONTENTFILE};
 		
-		public static final String[] TYPES = new String[] {TYPE_PRIMARY_KEY, "INTEGER(7)", TYPE_TEXT, TYPE_TEXT, TYPE_DATETIME, TYPE_DATETIME, TYPE_TEXT, TYPE_BOOLEAN, TYPE_TEXT, TYPE_TEXT, TYPE_TEXT};
+		public static final String[] TYPES = new String[] {TYPE_PRIMARY_KEY, "INTEGER(7)", TYPE_TEXT, TYPE_TEXT, TYPE_DATETIME, TYPE_DATETIME, TYPE_TEXT, TYPE_BOOLEAN, TYPE_TEXT, TYPE_TEXT, TYPE_TEXT, TYPE_TEXT};
 
 		public static Uri CONTENT_URI = Uri.parse(new StringBuilder(CONTENT).append(AUTHORITY).append("/entries").toString());
 		
@@ -126,54 +158,127 @@ public class FeedData {
 			return Uri.parse(new StringBuilder(CONTENT).append(AUTHORITY).append("/entries/").append(entryId).toString());
 		}
 		
+		public static Uri IMAGES_CONTENT_URI(String entryId) {
+			return Uri.parse(new StringBuilder(CONTENT).append(AUTHORITY).append("/entries/").append(entryId).append("/images").toString());
+		}
+		
 		public static Uri PARENT_URI(String path) {
 			return Uri.parse(new StringBuilder(CONTENT).append(AUTHORITY).append(path.substring(0, path.lastIndexOf('/'))).toString());
 		}
 		
 	}
+	
+	/**
+	 * The icons are stored once per host and joined into the icon
+	 * column of the feeds and entries queries.
+	 */
+	public static class IconColumns implements BaseColumns {
+		public static final Uri CONTENT_URI = Uri.parse(new StringBuilder(CONTENT).append(AUTHORITY).append("/icons").toString());
+		
+		public static final String HOST = "host";
+		
+		/** Null if the last lookup failed */
+		public static final String DATA = "data";
+		
+		public static final String FETCHDATE = "fetchdate";
+		
+		public static final String[] COLUMNS = new String[] {_ID, HOST, DATA, FETCHDATE};
 		
-	private static String[] IDPROJECTION = new String[] {FeedData.EntryColumns._ID};
+		public static final String[] TYPES = new String[] {TYPE_PRIMARY_KEY, "TEXT UNIQUE", "BLOB", TYPE_DATETIME};
+	}
 	
-	public static void deletePicturesOfFeedAsync(final Context context, final Uri entriesUri, final String selection) {
-		if (FeedDataContentProvider.IMAGEFOLDER_FILE.exists()) {
-			new Thread() {
-				public void run() {
-					deletePicturesOfFeed(context, entriesUri, selection);
-				}
-			}.start();
-		}
+	/**
+	 * Every image is stored once in a file named after the hash of its content.
+	 * The images are found by the hash of their url and are referenced by the
+	 * entries via {@link EntryImageColumns}.
+	 */
+	public static class ImageColumns implements BaseColumns {
+		public static final Uri CONTENT_URI = Uri.parse(new StringBuilder(CONTENT).append(AUTHORITY).append("/images").toString());
+		
+		public static final String URLHASH = "urlhash";
+		
+		public static final String URL = "url";
+		
+		/** The name of the file in the image folder or null if the image is not downloaded yet */
+		public static final String FILE = "file";
+		
+		/** The number of entries that reference the image */
+		public static final String REFCOUNT = "refcount";
+		
+		public static final String[] COLUMNS = new String[] {_ID, URLHASH, URL, FILE, REFCOUNT};
+		
+		public static final String[] TYPES = new String[] {TYPE_PRIMARY_KEY, "TEXT UNIQUE", TYPE_TEXT, TYPE_TEXT, TYPE_INT};
 	}
 	
-	public static synchronized void deletePicturesOfFeed(Context context, Uri entriesUri, String selection) {
-		if (FeedDataContentProvider.IMAGEFOLDER_FILE.exists()) {
-			PictureFilenameFilter filenameFilter = new PictureFilenameFilter();
-			
-			Cursor cursor = context.getContentResolver().query(entriesUri, IDPROJECTION, selection, null, null);
-			
-			while (cursor.moveToNext()) {
-				filenameFilter.setEntryId(cursor.getString(0));
-				
-				File[] files = FeedDataContentProvider.IMAGEFOLDER_FILE.listFiles(filenameFilter);
-				
-				for (int n = 0, i = files != null ? files.length : 0; n < i; n++) {
-					files[n].delete();
-				}
-			}
-			cursor.close();
-		}
+	public static class EntryImageColumns implements BaseColumns {
+		public static final String ENTRY_ID = "entryid";
+		
+		public static final String URLHASH = ImageColumns.URLHASH;
+		
+		public static final String[] COLUMNS = new String[] {_ID, ENTRY_ID, URLHASH};
+		
+		public static final String[] TYPES = new String[] {TYPE_PRIMARY_KEY, TYPE_INT, TYPE_TEXT};
 	}
 	
-	public static synchronized void deletePicturesOfEntry(String entryId) {
-		if (FeedDataContentProvider.IMAGEFOLDER_FILE.exists()) {
-			PictureFilenameFilter filenameFilter = new PictureFilenameFilter(entryId);
-			
-			File[] files = FeedDataContentProvider.IMAGEFOLDER_FILE.listFiles(filenameFilter);
-			
-			for (int n = 0, i = files != null ? files.length : 0; n < i; n++) {
-				files[n].delete();
-			}
+	/**
+	 * One row per refresh attempt of a feed; only the latest attempts of every feed are kept.
+	 * All durations are in milliseconds.
+	 */
+	public static class FetchLogColumns implements BaseColumns {
+		public static final String FEED_ID = "feedid";
+		
+		public static final String DATE = "date";
+		
+		/** The http status code or 0 if there has been no response */
+		public static final String STATUS = "status";
+		
+		/** The time until the connection has been established */
+		public static final String CONNECTTIME = "connecttime";
+		
+		/** The time from the established connection to the response headers */
+		public static final String FIRSTBYTETIME = "firstbytetime";
+		
+		/** The time spent waiting for the body */
+		public static final String DOWNLOADTIME = "downloadtime";
+		
+		/** The time spent parsing the body without the waiting for it */
+		public static final String PARSETIME = "parsetime";
+		
+		/** The bytes that have been transferred */
+		public static final String BYTES = "bytes";
+		
+		/** The bytes after decompression */
+		public static final String UNCOMPRESSEDBYTES = "uncompressedbytes";
+		
+		public static final String ENTRIES = "entries";
+		
+		public static final String NEWENTRIES = "newentries";
+		
+		/** The entries that were known or too old */
+		public static final String SKIPPEDENTRIES = "skippedentries";
+		
+		public static final String ERROR = "error";
+		
+		public static final String[] COLUMNS = new String[] {_ID, FEED_ID, DATE, STATUS, CONNECTTIME, FIRSTBYTETIME, DOWNLOADTIME, PARSETIME, BYTES, UNCOMPRESSEDBYTES, ENTRIES, NEWENTRIES, SKIPPEDENTRIES, ERROR};
+		
+		public static final String[] TYPES = new String[] {TYPE_PRIMARY_KEY, TYPE_INT, TYPE_DATETIME, TYPE_INT, TYPE_INT, TYPE_INT, TYPE_INT, TYPE_INT, TYPE_INT, TYPE_INT, TYPE_INT, TYPE_INT, TYPE_INT, TYPE_TEXT};
+	}
+		
+	public static String getUrlHash(String url) {
+		try {
+			return toHex(MessageDigest.getInstance(MD5).digest(url.getBytes(UTF8)));
+		} catch (Exception e) {
+			return Integer.toHexString(url.hashCode()); // md5 and utf-8 are always there
 		}
 	}
 	
+	public static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length*2);
+		
+		for (byte b : bytes) {
+			builder.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+		}
+		return builder.toString();
+	}
 
 }
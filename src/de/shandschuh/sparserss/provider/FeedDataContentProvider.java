@@ -26,6 +26,8 @@
 package de.shandschuh.sparserss.provider;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.Vector;
 
 import android.content.ContentProvider;
 import android.content.ContentUris;
@@ -49,7 +51,7 @@ public class FeedDataContentProvider extends ContentProvider {
 	
 	private static final String DATABASE_NAME = "sparserss.db";
 	
-	private static final int DATABASE_VERSION = 13;
+	private static final int DATABASE_VERSION = 22;
 	
 	private static final int URI_FEEDS = 1;
 	
@@ -67,10 +69,54 @@ public class FeedDataContentProvider extends ContentProvider {
 	
 	private static final int URI_FAVORITES_ENTRY = 8;
 	
+	private static final int URI_ICONS = 9;
+	
+	private static final int URI_IMAGES = 10;
+	
+	private static final int URI_ENTRY_IMAGES = 11;
+	
+	private static final int URI_FEED_FETCHLOG = 12;
+	
+	/** The number of fetch log rows that are kept per feed */
+	private static final int MAX_FETCHLOGS = 20;
+	
 	protected static final String TABLE_FEEDS = "feeds";
 	
 	private static final String TABLE_ENTRIES = "entries";
 	
+	private static final String TABLE_ICONS = "icons";
+	
+	private static final String TABLE_IMAGES = "images";
+	
+	private static final String TABLE_ENTRYIMAGES = "entryimages";
+	
+	private static final String TABLE_FETCHLOG = "fetchlog";
+	
+	private static final String TABLES_ENTRYIMAGES_WITH_IMAGES = new StringBuilder(TABLE_ENTRYIMAGES).append(" join ").append(TABLE_IMAGES).append(" on (").append(TABLE_ENTRYIMAGES).append('.').append(FeedData.EntryImageColumns.URLHASH).append('=').append(TABLE_IMAGES).append('.').append(FeedData.ImageColumns.URLHASH).append(')').toString();
+	
+	private static final String[] PROJECTION_ID = new String[] {FeedData.ImageColumns._ID};
+	
+	private static final String[] PROJECTION_FILE = new String[] {FeedData.ImageColumns.FILE};
+	
+	private static final String IMAGE_URLHASH_SELECTION = FeedData.ImageColumns.URLHASH+Strings.DB_ARG;
+	
+	private static final String IMAGE_FILE_SELECTION = FeedData.ImageColumns.FILE+Strings.DB_ARG;
+	
+	private static final String IMAGE_UNUSED_SELECTION = FeedData.ImageColumns.REFCOUNT+"<=0";
+	
+	private static final String[] PROJECTION_CONTENTFILE = new String[] {FeedData.EntryColumns.CONTENTFILE};
+	
+	private static final String IMAGE_INCREMENT = new StringBuilder("UPDATE ").append(TABLE_IMAGES).append(" SET ").append(FeedData.ImageColumns.REFCOUNT).append('=').append(FeedData.ImageColumns.REFCOUNT).append("+1 WHERE ").append(IMAGE_URLHASH_SELECTION).toString();
+	
+	private static final String JOIN_ICONS = new StringBuilder(" left join ").append(TABLE_ICONS).append(" on (").append(TABLE_FEEDS).append('.').append(FeedData.FeedColumns.ICONHOST).append('=').append(TABLE_ICONS).append('.').append(FeedData.IconColumns.HOST).append(')').toString();
+	
+	/** The icon of the host is preferred to an icon that was stored with the feed by older versions */
+	private static final String ICON = new StringBuilder("ifnull(").append(TABLE_ICONS).append('.').append(FeedData.IconColumns.DATA).append(", ").append(TABLE_FEEDS).append('.').append(FeedData.FeedColumns.ICON).append(") as ").append(FeedData.FeedColumns.ICON).toString();
+	
+	private static final String TABLES_FEEDS;
+	
+	private static final String TABLES_ENTRIES_WITH_FEEDS = new StringBuilder("entries join (select feeds.name as name, ").append(ICON).append(", feeds._id as feed_id from feeds").append(JOIN_ICONS).append(") as F on (entries.feedid = F.feed_id)").toString();
+	
 	private static final String ALTER_TABLE = "ALTER TABLE ";
 	
 	private static final String ADD = " ADD ";
@@ -81,6 +127,11 @@ public class FeedDataContentProvider extends ContentProvider {
 	
 	public static final File IMAGEFOLDER_FILE = new File(IMAGEFOLDER);
 	
+	/** The folder of the abstracts that are too long for the database */
+	public static final String CONTENTFOLDER = Environment.getExternalStorageDirectory()+"/sparserss/content/";
+	
+	public static final File CONTENTFOLDER_FILE = new File(CONTENTFOLDER);
+	
 	private static final String BACKUPOPML = Environment.getExternalStorageDirectory()+"/sparserss/backup.opml";
 	
 	private static UriMatcher URI_MATCHER;
@@ -97,6 +148,26 @@ public class FeedDataContentProvider extends ContentProvider {
 		URI_MATCHER.addURI(FeedData.AUTHORITY, "entries/#", URI_ALLENTRIES_ENTRY);
 		URI_MATCHER.addURI(FeedData.AUTHORITY, "favorites", URI_FAVORITES);
 		URI_MATCHER.addURI(FeedData.AUTHORITY, "favorites/#", URI_FAVORITES_ENTRY);
+		URI_MATCHER.addURI(FeedData.AUTHORITY, "icons", URI_ICONS);
+		URI_MATCHER.addURI(FeedData.AUTHORITY, "images", URI_IMAGES);
+		URI_MATCHER.addURI(FeedData.AUTHORITY, "entries/#/images", URI_ENTRY_IMAGES);
+		URI_MATCHER.addURI(FeedData.AUTHORITY, "feeds/#/fetchlog", URI_FEED_FETCHLOG);
+		
+		StringBuilder tables = new StringBuilder("(select ");
+		
+		for (int n = 0, i = FeedData.FeedColumns.COLUMNS.length; n < i; n++) {
+			String column = FeedData.FeedColumns.COLUMNS[n];
+			
+			if (n > 0) {
+				tables.append(", ");
+			}
+			if (FeedData.FeedColumns.ICON.equals(column)) {
+				tables.append(ICON);
+			} else {
+				tables.append(TABLE_FEEDS).append('.').append(column).append(" as ").append(column);
+			}
+		}
+		TABLES_FEEDS = tables.append(" from ").append(TABLE_FEEDS).append(JOIN_ICONS).append(") as F").toString();
 		
 		IMAGEFOLDER_FILE.mkdirs();
 		
@@ -124,6 +195,9 @@ public class FeedDataContentProvider extends ContentProvider {
 		public void onCreate(SQLiteDatabase database) {
 			database.execSQL(createTable(TABLE_FEEDS, FeedData.FeedColumns.COLUMNS, FeedData.FeedColumns.TYPES));
 			database.execSQL(createTable(TABLE_ENTRIES, FeedData.EntryColumns.COLUMNS, FeedData.EntryColumns.TYPES));
+			database.execSQL(createTable(TABLE_ICONS, FeedData.IconColumns.COLUMNS, FeedData.IconColumns.TYPES));
+			createImageTables(database);
+			createFetchLogTable(database);
 			
 			File backupFile = new File(BACKUPOPML);
 			
@@ -198,6 +272,100 @@ public class FeedDataContentProvider extends ContentProvider {
 			if (oldVersion < 13) {
 				executeCatchedSQL(database, new StringBuilder(ALTER_TABLE).append(TABLE_FEEDS).append(ADD).append(FeedData.FeedColumns.HIDE_READ).append(' ').append(FeedData.TYPE_BOOLEAN).toString());
 			}
+			if (oldVersion < 14) {
+				executeCatchedSQL(database, new StringBuilder(ALTER_TABLE).append(TABLE_FEEDS).append(ADD).append(FeedData.FeedColumns.ETAG).append(' ').append(FeedData.TYPE_TEXT).toString());
+				executeCatchedSQL(database, new StringBuilder(ALTER_TABLE).append(TABLE_FEEDS).append(ADD).append(FeedData.FeedColumns.LASTMODIFIED).append(' ').append(FeedData.TYPE_TEXT).toString());
+			}
+			if (oldVersion < 15) {
+				executeCatchedSQL(database, new StringBuilder(ALTER_TABLE).append(TABLE_FEEDS).append(ADD).append(FeedData.FeedColumns.PUBLISHINTERVAL).append(' ').append(FeedData.TYPE_INT).toString());
+				executeCatchedSQL(database, new StringBuilder(ALTER_TABLE).append(TABLE_FEEDS).append(ADD).append(FeedData.FeedColumns.NEXTREFRESH).append(' ').append(FeedData.TYPE_DATETIME).toString());
+			}
+			if (oldVersion < 16) {
+				executeCatchedSQL(database, new StringBuilder(ALTER_TABLE).append(TABLE_FEEDS).append(ADD).append(FeedData.FeedColumns.ICONHOST).append(' ').append(FeedData.TYPE_TEXT).toString());
+				executeCatchedSQL(database, createTable(TABLE_ICONS, FeedData.IconColumns.COLUMNS, FeedData.IconColumns.TYPES));
+			}
+			if (oldVersion < 17) {
+				createImageTables(database);
+			}
+			if (oldVersion < 18) {
+				indexEntryImageFiles(database);
+			}
+			if (oldVersion < 19) {
+				executeCatchedSQL(database, new StringBuilder(ALTER_TABLE).append(TABLE_FEEDS).append(ADD).append(FeedData.FeedColumns.FAILURES).append(' ').append(FeedData.TYPE_INT).toString());
+				executeCatchedSQL(database, new StringBuilder(ALTER_TABLE).append(TABLE_FEEDS).append(ADD).append(FeedData.FeedColumns.BACKOFFUNTIL).append(' ').append(FeedData.TYPE_DATETIME).toString());
+			}
+			if (oldVersion < 20) {
+				createFetchLogTable(database);
+			}
+			if (oldVersion < 21) {
+				executeCatchedSQL(database, new StringBuilder(ALTER_TABLE).append(TABLE_FEEDS).append(ADD).append(FeedData.FeedColumns.BODYDIGEST).append(' ').append(FeedData.TYPE_TEXT).toString());
+			}
+			if (oldVersion < 22) {
+				executeCatchedSQL(database, new StringBuilder(ALTER_TABLE).append(TABLE_ENTRIES).append(ADD).append(FeedData.EntryColumns.CONTENTFILE).append(' ').append(FeedData.TYPE_TEXT).toString());
+			}
+		}
+		
+		/**
+		 * Adds the image files of older versions, which are named after their entry, to the image
+		 * tables such that they are deleted with their entry. This is the last directory scan.
+		 */
+		private void indexEntryImageFiles(SQLiteDatabase database) {
+			String[] fileNames = IMAGEFOLDER_FILE.list();
+			
+			ContentValues values = new ContentValues();
+			
+			for (int n = 0, i = fileNames != null ? fileNames.length : 0; n < i; n++) {
+				String fileName = fileNames[n];
+				
+				int index = fileName.indexOf(Strings.IMAGEFILE_IDSEPARATOR);
+				
+				if (index > 0) {
+					String entryId = fileName.substring(0, index);
+					
+					boolean exists = false;
+					
+					try {
+						Cursor cursor = database.query(TABLE_ENTRIES, PROJECTION_ID, new StringBuilder(FeedData.EntryColumns._ID).append('=').append(Long.parseLong(entryId)).toString(), null, null, null, null);
+						
+						exists = cursor.moveToFirst();
+						cursor.close();
+					} catch (NumberFormatException e) {
+						continue; // not our file
+					}
+					if (exists) {
+						String urlHash = FeedData.getUrlHash(fileName); // there is no url, but the name is unique as well
+						
+						values.clear();
+						values.put(FeedData.ImageColumns.URLHASH, urlHash);
+						values.put(FeedData.ImageColumns.FILE, fileName);
+						values.put(FeedData.ImageColumns.REFCOUNT, 1);
+						database.insert(TABLE_IMAGES, null, values);
+						values.clear();
+						values.put(FeedData.EntryImageColumns.ENTRY_ID, entryId);
+						values.put(FeedData.EntryImageColumns.URLHASH, urlHash);
+						database.insert(TABLE_ENTRYIMAGES, null, values);
+					} else {
+						new File(IMAGEFOLDER_FILE, fileName).delete(); // left over by an earlier deletion
+					}
+				}
+			}
+		}
+		
+		private void createImageTables(SQLiteDatabase database) {
+			executeCatchedSQL(database, createTable(TABLE_IMAGES, FeedData.ImageColumns.COLUMNS, FeedData.ImageColumns.TYPES));
+			executeCatchedSQL(database, createTable(TABLE_ENTRYIMAGES, FeedData.EntryImageColumns.COLUMNS, FeedData.EntryImageColumns.TYPES));
+			executeCatchedSQL(database, createIndex(TABLE_IMAGES, FeedData.ImageColumns.FILE));
+			executeCatchedSQL(database, createIndex(TABLE_ENTRYIMAGES, FeedData.EntryImageColumns.ENTRY_ID));
+			executeCatchedSQL(database, createIndex(TABLE_ENTRYIMAGES, FeedData.EntryImageColumns.URLHASH));
+		}
+		
+		private void createFetchLogTable(SQLiteDatabase database) {
+			executeCatchedSQL(database, createTable(TABLE_FETCHLOG, FeedData.FetchLogColumns.COLUMNS, FeedData.FetchLogColumns.TYPES));
+			executeCatchedSQL(database, createIndex(TABLE_FETCHLOG, FeedData.FetchLogColumns.FEED_ID));
+		}
+		
+		private String createIndex(String tableName, String column) {
+			return new StringBuilder("CREATE INDEX ").append(tableName).append('_').append(column).append(" ON ").append(tableName).append(" (").append(column).append(");").toString();
 		}
 		
 		private void executeCatchedSQL(SQLiteDatabase database, String query) {
@@ -286,7 +454,19 @@ public class FeedDataContentProvider extends ContentProvider {
 		}
 	}
 	
-	private DatabaseHelper databaseHelper;
+	/** The provider of this process, the batches of the fetcher are written through it */
+	private static FeedDataContentProvider instance;
+	
+	private volatile DatabaseHelper databaseHelper;
+	
+	/** The thread that writes the current batch or null */
+	private volatile Thread batchThread;
+	
+	/** The uris whose observers are notified once the current batch ends */
+	private HashSet<Uri> batchUris;
+	
+	/** The files of the deleted entries, they are deleted once the current batch has been committed */
+	private Vector<File> batchFiles;
 	
 	private String[] MAXPRIORITY = new String[] {"MAX("+FeedData.FeedColumns.PRIORITY+")"};
 
@@ -363,13 +543,39 @@ public class FeedDataContentProvider extends ContentProvider {
 			where.append(selection);
 		}
 		
-		int count = database.delete(table, where.toString(), selectionArgs);
+		int count = 0;
+		
+		Vector<String> unusedFiles = null;
+		
+		Vector<String> contentFiles = null;
+		
+		if (table == TABLE_ENTRIES) { // == is ok here
+			database.beginTransaction();
+			try {
+				unusedFiles = releaseImages(database, where.toString(), selectionArgs);
+				contentFiles = getContentFiles(database, where.toString(), selectionArgs);
+				count = database.delete(table, where.toString(), selectionArgs);
+				database.setTransactionSuccessful();
+			} finally {
+				database.endTransaction();
+			}
+			for (int n = 0, i = unusedFiles.size(); n < i; n++) {
+				deleteFile(new File(IMAGEFOLDER_FILE, unusedFiles.get(n)));
+			}
+			for (int n = 0, i = contentFiles.size(); n < i; n++) {
+				deleteFile(new File(CONTENTFOLDER_FILE, contentFiles.get(n)));
+			}
+		} else {
+			count = database.delete(table, where.toString(), selectionArgs);
+		}
 		
 		if (table == TABLE_FEEDS) { // == is ok here
 			OPML.exportToFile(BACKUPOPML, database);
+			database.execSQL(new StringBuilder("DELETE FROM ").append(TABLE_FETCHLOG).append(" WHERE ").append(FeedData.FetchLogColumns.FEED_ID).append(" NOT IN (SELECT ").append(FeedData.FeedColumns._ID).append(" FROM ").append(TABLE_FEEDS).append(')').toString());
+			database.execSQL(new StringBuilder("DELETE FROM ").append(TABLE_ICONS).append(" WHERE ").append(FeedData.IconColumns.HOST).append(" NOT IN (SELECT ").append(FeedData.FeedColumns.ICONHOST).append(" FROM ").append(TABLE_FEEDS).append(" WHERE ").append(FeedData.FeedColumns.ICONHOST).append(" IS NOT NULL)").toString()); // icons nobody shows anymore
 		}
 		if (count > 0) {
-			getContext().getContentResolver().notifyChange(uri, null);
+			notifyChange(uri);
 			getContext().sendBroadcast(new Intent(Strings.ACTION_UPDATEWIDGET));
 		}
 		return count;
@@ -388,6 +594,10 @@ public class FeedDataContentProvider extends ContentProvider {
 			case URI_FAVORITES_ENTRY :
 			case URI_ALLENTRIES_ENTRY :
 			case URI_ENTRY : return "vnd.android.cursor.item/vnd.feeddata.entry";
+			case URI_ICONS : return "vnd.android.cursor.dir/vnd.feeddata.icon";
+			case URI_ENTRY_IMAGES :
+			case URI_IMAGES : return "vnd.android.cursor.dir/vnd.feeddata.image";
+			case URI_FEED_FETCHLOG : return "vnd.android.cursor.dir/vnd.feeddata.fetchlog";
 			default : throw new IllegalArgumentException("Unknown URI: "+uri);
 		}
 	}
@@ -423,16 +633,153 @@ public class FeedDataContentProvider extends ContentProvider {
 				newId = database.insert(TABLE_ENTRIES, null, values);
 				break;
 			}
+			case URI_ICONS : {
+				newId = database.replace(TABLE_ICONS, null, values); // there is only one icon per host
+				notifyChange(FeedData.FeedColumns.CONTENT_URI);
+				notifyChange(FeedData.EntryColumns.CONTENT_URI);
+				break;
+			}
+			case URI_ENTRY_IMAGES : {
+				newId = addImageReference(database, uri.getPathSegments().get(1), values.getAsString(FeedData.ImageColumns.URL));
+				break;
+			}
+			case URI_FEED_FETCHLOG : {
+				String feedId = uri.getPathSegments().get(1);
+				
+				values.put(FeedData.FetchLogColumns.FEED_ID, feedId);
+				newId = database.insert(TABLE_FETCHLOG, null, values);
+				/* the history is bounded, older rows make room for the new one */
+				String feedSelection = new StringBuilder(FeedData.FetchLogColumns.FEED_ID).append('=').append(Long.parseLong(feedId)).toString();
+				
+				database.execSQL(new StringBuilder("DELETE FROM ").append(TABLE_FETCHLOG).append(" WHERE ").append(feedSelection).append(" AND ").append(FeedData.FetchLogColumns._ID).append(" NOT IN (SELECT ").append(FeedData.FetchLogColumns._ID).append(" FROM ").append(TABLE_FETCHLOG).append(" WHERE ").append(feedSelection).append(" ORDER BY ").append(FeedData.FetchLogColumns._ID).append(Strings.DB_DESC).append(" LIMIT ").append(MAX_FETCHLOGS).append(')').toString());
+				break;
+			}
 			default : throw new IllegalArgumentException("Illegal insert");
 		}
 		if (newId > -1) {
-			getContext().getContentResolver().notifyChange(uri, null);
+			notifyChange(uri);
 			return ContentUris.withAppendedId(uri, newId);
 		} else {
 			throw new SQLException("Could not insert row into "+uri);
 		}
 	}
 
+	/**
+	 * Adds a reference from the entry to the image with the given url, the image
+	 * itself is only added once.
+	 */
+	private long addImageReference(SQLiteDatabase database, String entryId, String url) {
+		String urlHash = FeedData.getUrlHash(url);
+		
+		String[] urlHashArgs = new String[] {urlHash};
+		
+		database.beginTransaction();
+		try {
+			Cursor cursor = database.query(TABLE_IMAGES, PROJECTION_ID, IMAGE_URLHASH_SELECTION, urlHashArgs, null, null, null);
+			
+			boolean exists = cursor.moveToFirst();
+			
+			cursor.close();
+			
+			ContentValues values = new ContentValues();
+			
+			if (exists) {
+				database.execSQL(IMAGE_INCREMENT, urlHashArgs);
+			} else {
+				values.put(FeedData.ImageColumns.URLHASH, urlHash);
+				values.put(FeedData.ImageColumns.URL, url);
+				values.put(FeedData.ImageColumns.REFCOUNT, 1);
+				database.insert(TABLE_IMAGES, null, values);
+				values.clear();
+			}
+			values.put(FeedData.EntryImageColumns.ENTRY_ID, entryId);
+			values.put(FeedData.EntryImageColumns.URLHASH, urlHash);
+			
+			long id = database.insert(TABLE_ENTRYIMAGES, null, values);
+			
+			database.setTransactionSuccessful();
+			return id;
+		} finally {
+			database.endTransaction();
+		}
+	}
+	
+	/**
+	 * Removes the image references of the entries that are about to be deleted. This
+	 * has to run in the transaction that deletes the entries.
+	 * 
+	 * @return the files that are not used by any image anymore
+	 */
+	private Vector<String> releaseImages(SQLiteDatabase database, String entriesWhere, String[] selectionArgs) {
+		StringBuilder entrySelection = new StringBuilder(FeedData.EntryImageColumns.ENTRY_ID).append(" IN (SELECT ").append(FeedData.EntryColumns._ID).append(" FROM ").append(TABLE_ENTRIES);
+		
+		if (entriesWhere.length() > 0) {
+			entrySelection.append(" WHERE ").append(entriesWhere);
+		}
+		entrySelection.append(')');
+		
+		String[] updateArgs = null;
+		
+		if (selectionArgs != null) {
+			/* the entry selection occurs twice in the update */
+			updateArgs = new String[selectionArgs.length*2];
+			System.arraycopy(selectionArgs, 0, updateArgs, 0, selectionArgs.length);
+			System.arraycopy(selectionArgs, 0, updateArgs, selectionArgs.length, selectionArgs.length);
+		}
+		
+		StringBuilder update = new StringBuilder("UPDATE ").append(TABLE_IMAGES).append(" SET ").append(FeedData.ImageColumns.REFCOUNT).append('=').append(FeedData.ImageColumns.REFCOUNT).append("-(SELECT COUNT(*) FROM ").append(TABLE_ENTRYIMAGES).append(" WHERE ").append(TABLE_ENTRYIMAGES).append('.').append(FeedData.EntryImageColumns.URLHASH).append('=').append(TABLE_IMAGES).append('.').append(FeedData.ImageColumns.URLHASH).append(Strings.DB_AND).append(entrySelection).append(") WHERE ").append(FeedData.ImageColumns.URLHASH).append(" IN (SELECT ").append(FeedData.EntryImageColumns.URLHASH).append(" FROM ").append(TABLE_ENTRYIMAGES).append(" WHERE ").append(entrySelection).append(')');
+		
+		if (updateArgs != null) {
+			database.execSQL(update.toString(), updateArgs);
+		} else {
+			database.execSQL(update.toString());
+		}
+		database.delete(TABLE_ENTRYIMAGES, entrySelection.toString(), selectionArgs);
+		
+		Vector<String> unusedFiles = new Vector<String>();
+		
+		Cursor cursor = database.query(TABLE_IMAGES, PROJECTION_FILE, IMAGE_UNUSED_SELECTION, null, null, null, null);
+		
+		while (cursor.moveToNext()) {
+			if (!cursor.isNull(0)) {
+				unusedFiles.add(cursor.getString(0));
+			}
+		}
+		cursor.close();
+		database.delete(TABLE_IMAGES, IMAGE_UNUSED_SELECTION, null);
+		for (int n = unusedFiles.size()-1; n > -1; n--) {
+			/* identical images of different urls share one file */
+			Cursor fileCursor = database.query(TABLE_IMAGES, PROJECTION_ID, IMAGE_FILE_SELECTION, new String[] {unusedFiles.get(n)}, null, null, null);
+			
+			if (fileCursor.moveToFirst()) {
+				unusedFiles.remove(n);
+			}
+			fileCursor.close();
+		}
+		return unusedFiles;
+	}
+	
+	/**
+	 * @return the files of the full abstracts of the entries
+	 */
+	private Vector<String> getContentFiles(SQLiteDatabase database, String entriesWhere, String[] selectionArgs) {
+		StringBuilder selection = new StringBuilder(FeedData.EntryColumns.CONTENTFILE).append(" IS NOT NULL");
+		
+		if (entriesWhere.length() > 0) {
+			selection.append(" AND (").append(entriesWhere).append(')');
+		}
+		
+		Vector<String> contentFiles = new Vector<String>();
+		
+		Cursor cursor = database.query(TABLE_ENTRIES, PROJECTION_CONTENTFILE, selection.toString(), selectionArgs, null, null, null);
+		
+		while (cursor.moveToNext()) {
+			contentFiles.add(cursor.getString(0));
+		}
+		cursor.close();
+		return contentFiles;
+	}
+	
 	@Override
 	public boolean onCreate() {
 		try {
@@ -443,8 +790,98 @@ public class FeedDataContentProvider extends ContentProvider {
 			
 		}
 		databaseHelper = new DatabaseHelper(getContext(), DATABASE_NAME, DATABASE_VERSION);
+		instance = this;
 		return true;
 	}
+	
+	/**
+	 * Switches the provider of this process to another database file, for instance
+	 * to let an instrumentation work without touching the feeds of the user.
+	 * 
+	 * @param name the name of the database or null for the default one
+	 * @return false if there is no provider in this process
+	 */
+	public static boolean useDatabase(String name) {
+		FeedDataContentProvider provider = instance;
+		
+		if (provider == null) {
+			return false;
+		}
+		
+		DatabaseHelper databaseHelper = provider.databaseHelper;
+		
+		provider.databaseHelper = new DatabaseHelper(provider.getContext(), name != null ? name : DATABASE_NAME, DATABASE_VERSION);
+		databaseHelper.close();
+		return true;
+	}
+	
+	/**
+	 * Runs the following calls of the current thread in one transaction until
+	 * endBatch(..) is called. Their observers are notified once at the end instead
+	 * of after every row. Only one thread may write batches at a time.
+	 * 
+	 * @return false if there is no provider in this process, then the calls are not batched
+	 */
+	public static boolean beginBatch() {
+		FeedDataContentProvider provider = instance;
+		
+		if (provider == null) {
+			return false;
+		}
+		provider.databaseHelper.getWritableDatabase().beginTransaction();
+		provider.batchUris = new HashSet<Uri>();
+		provider.batchFiles = new Vector<File>();
+		provider.batchThread = Thread.currentThread();
+		return true;
+	}
+	
+	/**
+	 * @param successful false rolls back all calls since beginBatch()
+	 */
+	public static void endBatch(boolean successful) {
+		FeedDataContentProvider provider = instance;
+		
+		SQLiteDatabase database = provider.databaseHelper.getWritableDatabase();
+		
+		provider.batchThread = null;
+		try {
+			if (successful) {
+				database.setTransactionSuccessful();
+			}
+		} finally {
+			database.endTransaction();
+		}
+		if (successful) {
+			for (Uri uri : provider.batchUris) {
+				provider.getContext().getContentResolver().notifyChange(uri, null);
+			}
+			for (int n = 0, i = provider.batchFiles.size(); n < i; n++) {
+				provider.batchFiles.get(n).delete();
+			}
+		}
+		provider.batchUris = null;
+		provider.batchFiles = null;
+	}
+	
+	/**
+	 * Deletes the file of a deleted row, within a batch only after the batch has been
+	 * committed as the rows survive a rollback.
+	 */
+	private void deleteFile(File file) {
+		if (batchThread == Thread.currentThread()) {
+			batchFiles.add(file);
+		} else {
+			file.delete();
+		}
+	}
+	
+	private void notifyChange(Uri uri) {
+		if (batchThread == Thread.currentThread()) {
+			batchUris.add(uri);
+		} else {
+			getContext().getContentResolver().notifyChange(uri, null);
+		}
+	}
 
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
@@ -458,12 +895,12 @@ public class FeedDataContentProvider extends ContentProvider {
 		
 		switch(option) {
 			case URI_FEED : {
-				queryBuilder.setTables(TABLE_FEEDS);
+				queryBuilder.setTables(TABLES_FEEDS);
 				queryBuilder.appendWhere(new StringBuilder(FeedData.FeedColumns._ID).append('=').append(uri.getPathSegments().get(1)));
 				break;
 			}
 			case URI_FEEDS : {
-				queryBuilder.setTables(TABLE_FEEDS);
+				queryBuilder.setTables(TABLES_FEEDS);
 				break;
 			}
 			case URI_ENTRY : {
@@ -477,7 +914,7 @@ public class FeedDataContentProvider extends ContentProvider {
 				break;
 			}
 			case URI_ALLENTRIES : {
-				queryBuilder.setTables("entries join (select name, icon, _id as feed_id from feeds) as F on (entries.feedid = F.feed_id)");
+				queryBuilder.setTables(TABLES_ENTRIES_WITH_FEEDS);
 				break;
 			}
 			case URI_FAVORITES_ENTRY :
@@ -487,10 +924,31 @@ public class FeedDataContentProvider extends ContentProvider {
 				break;
 			}
 			case URI_FAVORITES : {
-				queryBuilder.setTables("entries join (select name, icon, _id as feed_id from feeds) as F on (entries.feedid = F.feed_id)");
+				queryBuilder.setTables(TABLES_ENTRIES_WITH_FEEDS);
 				queryBuilder.appendWhere(new StringBuilder(FeedData.EntryColumns.FAVORITE).append(EQUALS_ONE));
 				break;
 			}
+			case URI_ICONS : {
+				queryBuilder.setTables(TABLE_ICONS);
+				break;
+			}
+			case URI_IMAGES : {
+				queryBuilder.setTables(TABLE_IMAGES);
+				break;
+			}
+			case URI_FEED_FETCHLOG : {
+				queryBuilder.setTables(TABLE_FETCHLOG);
+				queryBuilder.appendWhere(new StringBuilder(FeedData.FetchLogColumns.FEED_ID).append('=').append(uri.getPathSegments().get(1)));
+				if (sortOrder == null) {
+					sortOrder = FeedData.FetchLogColumns._ID+Strings.DB_DESC;
+				}
+				break;
+			}
+			case URI_ENTRY_IMAGES : {
+				queryBuilder.setTables(TABLES_ENTRYIMAGES_WITH_IMAGES);
+				queryBuilder.appendWhere(new StringBuilder(TABLE_ENTRYIMAGES).append('.').append(FeedData.EntryImageColumns.ENTRY_ID).append('=').append(uri.getPathSegments().get(1)));
+				break;
+			}
 		}
 		
 		SQLiteDatabase database = databaseHelper.getReadableDatabase();
@@ -568,6 +1026,10 @@ public class FeedDataContentProvider extends ContentProvider {
 				where.append(FeedData.EntryColumns.FAVORITE).append(EQUALS_ONE);
 				break;
 			}
+			case URI_IMAGES : {
+				table = TABLE_IMAGES;
+				break;
+			}
 		}
 		
 		if (!TextUtils.isEmpty(selection)) {
@@ -584,7 +1046,7 @@ public class FeedDataContentProvider extends ContentProvider {
 			OPML.exportToFile(BACKUPOPML, database);
 		}
 		if (count > 0) {
-			getContext().getContentResolver().notifyChange(uri, null);
+			notifyChange(uri);
 		}
 		return count;
 	}
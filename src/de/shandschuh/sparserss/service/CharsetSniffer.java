@@ -0,0 +1,202 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+
+import android.util.Xml;
+
+/**
+ * Determines the charset of a feed from the byte order mark, the content
+ * type and the xml declaration without consuming the stream, so that the
+ * parser can be fed from the very same connection.
+ */
+public class CharsetSniffer {
+	/** The xml declaration has to be within this many bytes */
+	private static final int SNIFF_LENGTH = 512;
+	
+	private static final int BUFFER_SIZE = 8192;
+	
+	private static final String CHARSET = "charset=";
+	
+	private static final String XML_DECLARATION = "<?xml";
+	
+	private static final String ENCODING = "encoding";
+	
+	private static final String ISO_8859_1 = "ISO-8859-1";
+	
+	private static final String UTF_8 = "UTF-8";
+	
+	private static final String UTF_16 = "UTF-16";
+	
+	private static final String UTF_16BE = "UTF-16BE";
+	
+	private static final String UTF_16LE = "UTF-16LE";
+	
+	private InputStream inputStream;
+	
+	private String charset;
+	
+	private boolean parserCharset;
+	
+	public CharsetSniffer(InputStream inputStream, String contentType) throws IOException {
+		this.inputStream = inputStream.markSupported() ? inputStream : new BufferedInputStream(inputStream, BUFFER_SIZE);
+		this.inputStream.mark(SNIFF_LENGTH);
+		
+		byte[] prefix = new byte[SNIFF_LENGTH];
+		
+		int length = 0;
+		
+		int n;
+		
+		while (length < SNIFF_LENGTH && (n = this.inputStream.read(prefix, length, SNIFF_LENGTH - length)) > 0) {
+			length += n;
+		}
+		this.inputStream.reset();
+		
+		/* the order follows RFC 3023: byte order mark, transport information, xml declaration */
+		charset = getBOMCharset(prefix, length);
+		if (UTF_8.equals(charset)) {
+			this.inputStream.skip(3); // not every decoder swallows the utf-8 bom
+		} else if (charset == null) {
+			charset = getContentTypeCharset(contentType);
+			if (charset == null) {
+				charset = getDeclaredCharset(prefix, length);
+			}
+		}
+		if (charset != null) {
+			try {
+				Xml.findEncodingByName(charset);
+				parserCharset = true;
+			} catch (UnsupportedEncodingException e) {
+				parserCharset = false;
+			}
+		}
+	}
+	
+	/**
+	 * @return the stream that has to be passed to the parser instead of the original one
+	 */
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+	
+	/**
+	 * @return the detected charset or null if there was no information at all
+	 */
+	public String getCharset() {
+		return charset;
+	}
+	
+	/**
+	 * @return true if the charset can be handled by the parser itself
+	 */
+	public boolean isParserCharset() {
+		return parserCharset;
+	}
+	
+	private static String getBOMCharset(byte[] prefix, int length) {
+		if (length > 2 && (prefix[0] & 0xff) == 0xef && (prefix[1] & 0xff) == 0xbb && (prefix[2] & 0xff) == 0xbf) {
+			return UTF_8;
+		} else if (length > 1 && (((prefix[0] & 0xff) == 0xfe && (prefix[1] & 0xff) == 0xff) || ((prefix[0] & 0xff) == 0xff && (prefix[1] & 0xff) == 0xfe))) {
+			return UTF_16; // the decoder determines the byte order from the bom
+		} else {
+			return null;
+		}
+	}
+	
+	public static String getContentTypeCharset(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		
+		int index = contentType.toLowerCase(Locale.US).indexOf(CHARSET);
+		
+		if (index == -1) {
+			return null;
+		}
+		
+		int index2 = contentType.indexOf(';', index);
+		
+		String charset = (index2 > -1 ? contentType.substring(index+8, index2) : contentType.substring(index+8)).trim();
+		
+		if (charset.length() > 1 && (charset.charAt(0) == '"' || charset.charAt(0) == '\'')) {
+			charset = charset.substring(1, charset.length()-1);
+		}
+		return charset.length() > 0 ? charset : null;
+	}
+	
+	private static String getDeclaredCharset(byte[] prefix, int length) {
+		String declaration = null;
+		
+		try {
+			if (length > 3 && prefix[0] == 0 && prefix[1] == '<' && prefix[2] == 0 && prefix[3] == '?') {
+				declaration = new String(prefix, 0, length, UTF_16BE);
+			} else if (length > 3 && prefix[0] == '<' && prefix[1] == 0 && prefix[2] == '?' && prefix[3] == 0) {
+				declaration = new String(prefix, 0, length, UTF_16LE);
+			} else {
+				declaration = new String(prefix, 0, length, ISO_8859_1); // the declaration itself is ascii
+			}
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+		
+		int start = declaration.indexOf(XML_DECLARATION);
+		
+		int end = declaration.indexOf('>');
+		
+		if (start == -1 || end < start) {
+			return null;
+		}
+		declaration = declaration.substring(start, end);
+		
+		int index = declaration.indexOf(ENCODING);
+		
+		if (index == -1) {
+			return null;
+		}
+		index = declaration.indexOf('=', index);
+		if (index == -1) {
+			return null;
+		}
+		
+		int declarationLength = declaration.length();
+		
+		while (++index < declarationLength && declaration.charAt(index) <= ' ');
+		if (index >= declarationLength || (declaration.charAt(index) != '"' && declaration.charAt(index) != '\'')) {
+			return null;
+		}
+		
+		int index2 = declaration.indexOf(declaration.charAt(index), index+1);
+		
+		return index2 > index+1 ? declaration.substring(index+1, index2) : null;
+	}
+	
+}
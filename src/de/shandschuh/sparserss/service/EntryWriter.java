@@ -0,0 +1,338 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.service;
+
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import de.shandschuh.sparserss.Strings;
+import de.shandschuh.sparserss.provider.FeedData;
+import de.shandschuh.sparserss.provider.FeedDataContentProvider;
+
+/**
+ * Writes the parsed entries of all refresh workers on a single thread. The parsers
+ * only queue batches, so they do not wait for the database and concurrent refreshes
+ * do not compete for it. Every batch is written in one transaction. The queue is
+ * bounded, so a parser waits if the writer falls behind.
+ */
+public class EntryWriter {
+	private static final int MAX_QUEUEDBATCHES = 4;
+	
+	/** A waiting parser checks this often whether the writer has been cancelled */
+	private static final long QUEUE_TIMEOUT = 1000;
+	
+	/** Queued after the last batch to end the writer thread */
+	private static final Batch END = new Batch(null, null);
+	
+	private Context context;
+	
+	private ContentResolver contentResolver;
+	
+	private ImageDownloader imageDownloader;
+	
+	private AtomicInteger newCount;
+	
+	private BlockingQueue<Batch> queue;
+	
+	private Thread thread;
+	
+	private volatile boolean cancelled;
+	
+	/**
+	 * @param imageDownloader the downloader the images of new entries are queued to or null if images are not fetched
+	 * @param newCount the count the number of new entries is added to
+	 */
+	public EntryWriter(Context context, ImageDownloader imageDownloader, AtomicInteger newCount) {
+		this.context = context;
+		contentResolver = context.getContentResolver();
+		this.imageDownloader = imageDownloader;
+		this.newCount = newCount;
+		queue = new ArrayBlockingQueue<Batch>(MAX_QUEUEDBATCHES);
+		thread = new Thread() {
+			public void run() {
+				try {
+					Batch batch = null;
+					
+					while ((batch = queue.take()) != END) {
+						try {
+							writeBatch(batch);
+						} catch (Throwable e) {
+							// the batch is lost, but the writer must keep taking batches or the parsers wait forever
+						}
+					}
+				} catch (InterruptedException e) {
+					
+				}
+			}
+		};
+		thread.start();
+	}
+	
+	/**
+	 * Queues the batch and waits while the queue is full. The batch is dropped if
+	 * the writer has been cancelled.
+	 */
+	public void write(Batch batch) {
+		try {
+			while (!queue.offer(batch, QUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				if (cancelled || !thread.isAlive()) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt(); // the refresh is aborted anyway
+		}
+	}
+	
+	/**
+	 * Stops the writer after the current batch, the queued batches are dropped.
+	 */
+	public void cancel() {
+		cancelled = true;
+		thread.interrupt();
+	}
+	
+	/**
+	 * Writes the queued batches and waits until they are written.
+	 */
+	public void shutdown() {
+		write(END);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			
+		}
+	}
+	
+	private void writeBatch(Batch batch) {
+		Vector<String> images = new Vector<String>();
+		
+		int count = 0;
+		
+		String error = null;
+		
+		boolean batched = FeedDataContentProvider.beginBatch();
+		
+		try {
+			count = writeEntries(batch, images);
+			if (batch.feedValues != null && batch.feedValues.size() > 0) {
+				contentResolver.update(FeedData.FeedColumns.CONTENT_URI(batch.feedId), batch.feedValues, null, null);
+			}
+		} catch (Exception e) {
+			error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+		} finally {
+			if (batched) {
+				FeedDataContentProvider.endBatch(error == null);
+			}
+		}
+		if (error == null) {
+			newCount.addAndGet(count);
+			for (int n = 0, i = images.size(); n < i; n++) {
+				imageDownloader.enqueue(images.get(n)); // the images are looked up in the database, so they are queued after the commit
+			}
+		} else {
+			count = 0;
+			if (batch.feedValues != null) {
+				ContentValues values = new ContentValues();
+				
+				values.put(FeedData.FeedColumns.ERROR, error);
+				contentResolver.update(FeedData.FeedColumns.CONTENT_URI(batch.feedId), values, null, null);
+			}
+		}
+		if (batch.log != null) {
+			batch.log.addNewEntryCount(count);
+			if (error != null) {
+				batch.log.setError(error);
+			}
+			if (batch.saveLog) {
+				batch.log.save(context, batch.feedId);
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of new or changed entries
+	 */
+	private int writeEntries(Batch batch, Vector<String> images) {
+		int count = 0;
+		
+		Uri entriesUri = FeedData.EntryColumns.CONTENT_URI(batch.feedId);
+		
+		if (batch.deleteSelection != null) {
+			contentResolver.delete(entriesUri, batch.deleteSelection, null);
+		}
+		for (int n = 0, i = batch.entries.size(); n < i; n++) {
+			Entry entry = batch.entries.get(n);
+			
+			ContentValues values = entry.values;
+			
+			if (entry.replaceOlder) {
+				if (contentResolver.update(entriesUri, values, new StringBuilder(entry.existanceSelection).append(Strings.DB_AND).append(FeedData.EntryColumns.DATE).append('<').append(entry.date).toString(), entry.existanceValues) == 1) {
+					count++;
+					continue;
+				} else {
+					values.remove(FeedData.EntryColumns.READDATE);
+					// continue with the standard procedure but don't reset the read-date
+				}
+			}
+			if (!entry.checkExistance || contentResolver.update(entriesUri, values, entry.existanceSelection, entry.existanceValues) == 0) {
+				values.put(FeedData.EntryColumns.LINK, entry.link);
+				if (entry.date == 0) {
+					values.put(FeedData.EntryColumns.DATE, entry.insertDate);
+				}
+				
+				String entryId = contentResolver.insert(entriesUri, values).getLastPathSegment();
+				
+				if (imageDownloader != null && entry.images != null) {
+					FeedDataContentProvider.IMAGEFOLDER_FILE.mkdir(); // create images dir
+					
+					Uri imagesUri = FeedData.EntryColumns.IMAGES_CONTENT_URI(entryId);
+					
+					ContentValues imageValues = new ContentValues();
+					
+					for (int k = 0, l = entry.images.size(); k < l; k++) {
+						String image = entry.images.get(k);
+						
+						imageValues.put(FeedData.ImageColumns.URL, image);
+						contentResolver.insert(imagesUri, imageValues);
+						images.add(image);
+					}
+				}
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * The entries of a part of a feed. The batches of a feed are written in the
+	 * order they are queued.
+	 */
+	public static class Batch {
+		private String feedId;
+		
+		private FetchLog log;
+		
+		private String deleteSelection;
+		
+		private Vector<Entry> entries;
+		
+		private ContentValues feedValues;
+		
+		private boolean saveLog;
+		
+		/**
+		 * @param log the log the number of new entries is added to or null
+		 */
+		public Batch(String feedId, FetchLog log) {
+			this.feedId = feedId;
+			this.log = log;
+			entries = new Vector<Entry>();
+		}
+		
+		/**
+		 * @param deleteSelection the entries of the feed that are deleted before the new ones are written
+		 */
+		public void setDeleteSelection(String deleteSelection) {
+			this.deleteSelection = deleteSelection;
+		}
+		
+		/**
+		 * Adds an entry that updates the existing entry with the same link, enclosure and guid
+		 * or is inserted if there is none.
+		 * 
+		 * @param date the date of the entry or 0 if it has none, then insertDate is used for a new entry
+		 * @param checkExistance false if the entry is inserted without looking for an existing one
+		 * @param replaceOlder true if an existing older version of the entry is replaced and counted as new
+		 * @param images the images of the entry or null
+		 */
+		public void addEntry(ContentValues values, String link, long date, long insertDate, String existanceSelection, String[] existanceValues, boolean checkExistance, boolean replaceOlder, Vector<String> images) {
+			Entry entry = new Entry();
+			
+			entry.values = values;
+			entry.link = link;
+			entry.date = date;
+			entry.insertDate = insertDate;
+			entry.existanceSelection = existanceSelection;
+			entry.existanceValues = existanceValues;
+			entry.checkExistance = checkExistance;
+			entry.replaceOlder = replaceOlder && date > 0;
+			entry.images = images;
+			entries.add(entry);
+		}
+		
+		public int size() {
+			return entries.size();
+		}
+		
+		/**
+		 * Sets the values of the feed that are updated after the entries. Later
+		 * values replace earlier ones.
+		 */
+		public void putFeedValues(ContentValues values) {
+			if (feedValues == null) {
+				feedValues = new ContentValues(values);
+			} else {
+				feedValues.putAll(values);
+			}
+		}
+		
+		/**
+		 * Saves the log after the batch has been written, so it holds all new entries of the feed.
+		 */
+		public void setSaveLog(boolean saveLog) {
+			this.saveLog = saveLog;
+		}
+	}
+	
+	private static class Entry {
+		ContentValues values;
+		
+		String link;
+		
+		long date;
+		
+		long insertDate;
+		
+		String existanceSelection;
+		
+		String[] existanceValues;
+		
+		boolean checkExistance;
+		
+		boolean replaceOlder;
+		
+		Vector<String> images;
+	}
+	
+}
@@ -0,0 +1,159 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.service;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.SystemClock;
+import de.shandschuh.sparserss.handler.RSSHandler;
+import de.shandschuh.sparserss.provider.FeedData;
+
+/**
+ * Collects the costs of a single refresh attempt of a feed. The transport adds
+ * the network times and bytes, the fetcher adds the parsing and the result and
+ * the entry writer adds the new entries.
+ * As the body is parsed while it streams in, the parse time is the time of the
+ * parsing minus the time its reads waited for the network.
+ */
+public class FetchLog {
+	private static final long NANOS_PER_MILLI = 1000000;
+	
+	private int status;
+	
+	private long connectTime;
+	
+	private long firstByteTime;
+	
+	private long downloadNanos;
+	
+	private long parseStartTime;
+	
+	/** The download time when the parsing has been started */
+	private long parseStartDownloadNanos;
+	
+	private long parseTime;
+	
+	private long bytes;
+	
+	private long uncompressedBytes;
+	
+	/** True if the body is unpacked after the transport has counted it */
+	private boolean compressed;
+	
+	private int entryCount;
+	
+	private int newEntryCount;
+	
+	private String error;
+	
+	public void setStatus(int status) {
+		this.status = status;
+	}
+	
+	public void addConnectTime(long time) {
+		connectTime += time;
+	}
+	
+	public void addFirstByteTime(long time) {
+		firstByteTime += time;
+	}
+	
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+	
+	/**
+	 * Called for every read of the body as it comes from the network.
+	 */
+	public void addDownload(int count, long nanos) {
+		downloadNanos += nanos;
+		if (count > 0) {
+			bytes += count;
+			if (!compressed) {
+				uncompressedBytes += count;
+			}
+		}
+	}
+	
+	public void addUncompressedBytes(int count) {
+		if (count > 0) {
+			uncompressedBytes += count;
+		}
+	}
+	
+	public void startParsing() {
+		parseStartTime = SystemClock.elapsedRealtime();
+		parseStartDownloadNanos = downloadNanos;
+	}
+	
+	/**
+	 * Takes the entry count of the handler if the parsing has been started; otherwise
+	 * the handler may still hold the count of another feed.
+	 */
+	public void stopParsing(RSSHandler handler) {
+		if (parseStartTime > 0) {
+			parseTime += Math.max(0, SystemClock.elapsedRealtime() - parseStartTime - (downloadNanos - parseStartDownloadNanos) / NANOS_PER_MILLI);
+			parseStartTime = 0;
+			entryCount = handler.getEntryCount();
+		}
+	}
+	
+	/**
+	 * Called by the entry writer once it has written a part of the parsed entries.
+	 */
+	public void addNewEntryCount(int count) {
+		newEntryCount += count;
+	}
+	
+	public void setError(String error) {
+		this.error = error;
+	}
+	
+	public void save(Context context, String feedId) {
+		ContentValues values = new ContentValues();
+		
+		long downloadTime = downloadNanos / NANOS_PER_MILLI;
+		
+		values.put(FeedData.FetchLogColumns.DATE, System.currentTimeMillis());
+		values.put(FeedData.FetchLogColumns.STATUS, status);
+		values.put(FeedData.FetchLogColumns.CONNECTTIME, connectTime);
+		values.put(FeedData.FetchLogColumns.FIRSTBYTETIME, firstByteTime);
+		values.put(FeedData.FetchLogColumns.DOWNLOADTIME, downloadTime);
+		values.put(FeedData.FetchLogColumns.PARSETIME, parseTime);
+		values.put(FeedData.FetchLogColumns.BYTES, bytes);
+		values.put(FeedData.FetchLogColumns.UNCOMPRESSEDBYTES, uncompressedBytes);
+		values.put(FeedData.FetchLogColumns.ENTRIES, entryCount);
+		values.put(FeedData.FetchLogColumns.NEWENTRIES, newEntryCount);
+		values.put(FeedData.FetchLogColumns.SKIPPEDENTRIES, Math.max(0, entryCount - newEntryCount));
+		values.put(FeedData.FetchLogColumns.ERROR, error);
+		try {
+			context.getContentResolver().insert(FeedData.FeedColumns.FETCHLOG_CONTENT_URI(feedId), values);
+		} catch (Exception e) {
+			// the statistics must never break a refresh
+		}
+	}
+	
+}
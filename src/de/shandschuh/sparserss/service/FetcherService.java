@@ -25,24 +25,29 @@
 
 package de.shandschuh.sparserss.service;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StringReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.IntentService;
 import android.app.Notification;
@@ -60,8 +65,8 @@ import android.net.Uri;
 import android.os.IBinder;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.util.Xml;
-import de.shandschuh.sparserss.BASE64;
 import de.shandschuh.sparserss.MainTabActivity;
 import de.shandschuh.sparserss.R;
 import de.shandschuh.sparserss.Strings;
@@ -73,48 +78,88 @@ public class FetcherService extends IntentService {
 	
 	private static final int FETCHMODE_REENCODE = 2;
 	
-	private static final String KEY_USERAGENT = "User-agent";
+	private static final String COUNT = "COUNT(*)";
 	
-	private static final String VALUE_USERAGENT = "Mozilla/5.0";
+	private static final String CONTENT_TYPE_TEXT_HTML = "text/html";
 	
-	private static final String CHARSET = "charset=";
+	private static final String SERVICENAME = "RssFetcherService";
 	
-	private static final String COUNT = "COUNT(*)";
+	private static final String ZERO = "0";
 	
-	private static final String CONTENT_TYPE_TEXT_HTML = "text/html";
+	private static final String DEFAULT_REFRESHTHREADS = "4";
 	
-	private static final String HREF = "href=\"";
+	private static final String KEY_ETAG = "ETag";
 	
-	private static final String HTML_BODY = "<body";
+	private static final String KEY_LASTMODIFIED = "Last-Modified";
 	
-	private static final String ENCODING = "encoding=\"";
+	private static final String KEY_RETRYAFTER = "Retry-After";
 	
-	private static final String SERVICENAME = "RssFetcherService";
+	private static final int HTTP_TOOMANYREQUESTS = 429;
 	
-	private static final String ZERO = "0";
+	private static final int MAX_REQUESTS_PER_HOST = 2;
+	
+	/** The time the icon lookups may take after all feeds are refreshed */
+	private static final long ICONFETCHER_TIMEOUT = 20000;
+	
+	private static final int IMAGEDOWNLOADER_THREADS = 3;
 	
-	private static final String GZIP = "gzip";
+	/** The time the image downloads may take after all feeds are refreshed */
+	private static final long IMAGEDOWNLOADER_TIMEOUT = 120000;
 	
-	/* Allow different positions of the "rel" attribute w.r.t. the "href" attribute */
-	private static final Pattern feedLinkPattern = Pattern.compile("[.]*<link[^>]* ((rel=alternate|rel=\"alternate\")[^>]* href=\"[^\"]*\"|href=\"[^\"]*\"[^>]* (rel=alternate|rel=\"alternate\"))[^>]*>", Pattern.CASE_INSENSITIVE);
+	private static final long MAX_REFRESHINTERVAL = 86400000;
 	
-	/* Case insensitive */
-	private static final Pattern feedIconPattern = Pattern.compile("[.]*<link[^>]* (rel=(\"shortcut icon\"|\"icon\"|icon)[^>]* href=\"[^\"]*\"|href=\"[^\"]*\"[^>]* rel=(\"shortcut icon\"|\"icon\"|icon))[^>]*>", Pattern.CASE_INSENSITIVE);
+	/** The weight of a new sample in the smoothed publish interval is 1/PUBLISHINTERVAL_SMOOTHING */
+	private static final int PUBLISHINTERVAL_SMOOTHING = 4;
+	
+	/** A feed is refreshed PUBLISHINTERVAL_DIVISOR times per expected publication */
+	private static final int PUBLISHINTERVAL_DIVISOR = 4;
+	
+	/** The part of the body that is read before the parsing such that an unchanged body is not parsed at all */
+	private static final int DIGESTPREFIX = 16384;
+	
+	/** The pause after the first failed refresh of a feed, it doubles with every further failure */
+	private static final long MIN_BACKOFF = 900000;
+	
+	private static final long MAX_BACKOFF = 86400000;
+	
+	/** After this many failures in a row a feed is paused and only probed once per PAUSE_PROBEINTERVAL */
+	public static final int PAUSE_FAILURES = 8;
+	
+	private static final long PAUSE_PROBEINTERVAL = 604800000;
 	
 	private NotificationManager notificationManager;
 	
 	private static SharedPreferences preferences = null;
 	
-	private static Proxy proxy;
+	private static volatile HttpTransport transport;
+	
+	private volatile boolean destroyed;
+	
+	/** All handlers that are currently in use by a refresh worker */
+	private Vector<RSSHandler> handlers;
+	
+	private volatile HostScheduler<Feed> scheduler;
 	
-	private boolean destroyed;
+	private volatile IconFetcher iconFetcher;
 	
-	private RSSHandler handler;
+	private volatile ImageDownloader imageDownloader;
+	
+	private volatile EntryWriter entryWriter;
+	
+	private int maxDescriptionLength;
+	
+	private boolean keepFullDescriptions;
+	
+	/** The user's refresh interval which is the shortest interval a feed is refreshed with */
+	private long refreshInterval;
+	
+	/** The checkpoint of the current refresh of all feeds, null while a single feed is refreshed */
+	private HashSet<String> pendingFeedIds;
 	
 	public FetcherService() {
 		super(SERVICENAME);
 		destroyed = false;
-		HttpURLConnection.setFollowRedirects(true);
+		handlers = new Vector<RSSHandler>();
 	}
 	
 	@Override
@@ -127,7 +172,10 @@ public class FetcherService extends IntentService {
 			}
 		}
 		
-		if (intent.getBooleanExtra(Strings.SCHEDULED, false)) {
+		boolean scheduled = intent.getBooleanExtra(Strings.SCHEDULED, false);
+		
+		refreshInterval = RefreshService.getRefreshInterval(preferences);
+		if (scheduled) {
 			SharedPreferences.Editor editor = preferences.edit();
 			editor.putLong(Strings.PREFERENCE_LASTSCHEDULEDREFRESH, SystemClock.elapsedRealtime());
 			editor.commit();
@@ -138,17 +186,24 @@ public class FetcherService extends IntentService {
 		final NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
 		
 		if (networkInfo != null && networkInfo.getState() == NetworkInfo.State.CONNECTED && intent != null) {
+			if (transport == null) {
+				transport = new PooledHttpTransport(); // the pooled connections outlive a single refresh
+			}
+			
+			Proxy proxy = null;
+			
 			if (preferences.getBoolean(Strings.SETTINGS_PROXYENABLED, false) && (networkInfo.getType() == ConnectivityManager.TYPE_WIFI || !preferences.getBoolean(Strings.SETTINGS_PROXYWIFIONLY, false))) {
 				try {
 					proxy = new Proxy(ZERO.equals(preferences.getString(Strings.SETTINGS_PROXYTYPE, ZERO)) ? Proxy.Type.HTTP : Proxy.Type.SOCKS, new InetSocketAddress(preferences.getString(Strings.SETTINGS_PROXYHOST, Strings.EMPTY), Integer.parseInt(preferences.getString(Strings.SETTINGS_PROXYPORT, Strings.DEFAULTPROXYPORT))));
 				} catch (Exception e) {
 					proxy = null;
 				}
-			} else {
-				proxy = null;
 			}
+			transport.setProxy(proxy);
 			
-			int newCount = refreshFeeds(FetcherService.this, intent.getStringExtra(Strings.FEEDID), networkInfo, intent.getBooleanExtra(Strings.SETTINGS_OVERRIDEWIFIONLY, false));
+			int newCount = refreshFeeds(FetcherService.this, intent.getStringExtra(Strings.FEEDID), intent.getStringExtra(Strings.FEEDIDS), networkInfo, intent.getBooleanExtra(Strings.SETTINGS_OVERRIDEWIFIONLY, false), scheduled);
+			
+			RefreshService.scheduleNextRefresh(FetcherService.this, preferences, 0); // the refreshed feeds have new due dates
 			
 			if (newCount > 0) {
 				if (preferences.getBoolean(Strings.SETTINGS_NOTIFICATIONSENABLED, false)) {
@@ -185,9 +240,19 @@ public class FetcherService extends IntentService {
 					notificationManager.cancel(0);
 				}
 			}
+		} else if (scheduled) {
+			RefreshService.scheduleNextRefresh(FetcherService.this, preferences, refreshInterval); // keep the alarm alive while there is no connection
 		}
 	}
 	
+	/**
+	 * Replaces the transport of all following refreshes, e.g. by a fake one for
+	 * tests and benchmarks; null restores the default transport.
+	 */
+	public static synchronized void setTransport(HttpTransport transport) {
+		FetcherService.transport = transport;
+	}
+	
 	@Override
 	public IBinder onBind(Intent intent) {
 		return null;
@@ -197,6 +262,7 @@ public class FetcherService extends IntentService {
 	public void onCreate() {
 		super.onCreate();
 		notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		PooledHttpTransport.configureKeepAlive();
 	}
 	
 	@Override
@@ -205,20 +271,76 @@ public class FetcherService extends IntentService {
 			MainTabActivity.INSTANCE.internalSetProgressBarIndeterminateVisibility(false);
 		}
 		destroyed = true;
-		if (handler != null) {
-			handler.cancel();
+		if (scheduler != null) {
+			scheduler.cancel();
+		}
+		if (iconFetcher != null) {
+			iconFetcher.cancel();
+		}
+		if (imageDownloader != null) {
+			imageDownloader.cancel();
+		}
+		if (entryWriter != null) {
+			entryWriter.cancel();
+		}
+		synchronized (handlers) {
+			for (RSSHandler handler : handlers) {
+				handler.cancel();
+			}
 		}
 		super.onDestroy();
 	}
 	
-	private int refreshFeeds(Context context, String feedId, NetworkInfo networkInfo, boolean overrideWifiOnly) {
-		String selection = null;
+	/**
+	 * @param feedId the single feed to refresh or null
+	 * @param feedIds the comma separated ids of the feeds to refresh or null; like a single feed they are refreshed regardless of their backoff
+	 */
+	private int refreshFeeds(Context context, String feedId, String feedIds, NetworkInfo networkInfo, boolean overrideWifiOnly, boolean scheduled) {
+		StringBuilder selection = new StringBuilder();
+		
+		String dueSelection = null;
+		
+		long now = System.currentTimeMillis();
+		
+		boolean allFeeds = feedId == null && feedIds == null;
+		
+		if (feedIds != null) {
+			selection.append(FeedData.FeedColumns._ID).append(" IN (");
+			
+			String[] ids = feedIds.split(Strings.COMMA);
+			
+			for (int n = 0; n < ids.length; n++) {
+				if (n > 0) {
+					selection.append(Strings.COMMA);
+				}
+				selection.append(Long.parseLong(ids[n].trim()));
+			}
+			selection.append(')');
+		} else if (allFeeds) {
+			// failing feeds are skipped until their backoff has passed, only a refresh of the single feed overrides it
+			selection.append('(').append(FeedData.FeedColumns.BACKOFFUNTIL).append(Strings.DB_ISNULL).append(" OR ").append(FeedData.FeedColumns.BACKOFFUNTIL).append("<=").append(now).append(')');
+			if (scheduled) {
+				// scheduled refreshes only fetch the feeds whose adaptive interval has passed
+				dueSelection = new StringBuilder("(").append(FeedData.FeedColumns.NEXTREFRESH).append(Strings.DB_ISNULL).append(" OR ").append(FeedData.FeedColumns.NEXTREFRESH).append("<=").append(now).append(')').toString();
+				selection.append(Strings.DB_AND).append(dueSelection);
+			}
+		}
 		
 		if (!overrideWifiOnly && networkInfo.getType() != ConnectivityManager.TYPE_WIFI) {
-			selection = new StringBuilder(FeedData.FeedColumns.WIFIONLY).append("=0 or ").append(FeedData.FeedColumns.WIFIONLY).append(" IS NULL").toString(); // "IS NOT 1" does not work on 2.1
+			if (dueSelection != null) {
+				/* postpone the skipped feeds, otherwise they would keep the next alarm close */
+				ContentValues values = new ContentValues();
+				
+				values.put(FeedData.FeedColumns.NEXTREFRESH, now + refreshInterval);
+				context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI, values, new StringBuilder(selection).append(Strings.DB_AND).append(FeedData.FeedColumns.WIFIONLY).append("=1").toString(), null);
+			}
+			if (selection.length() > 0) {
+				selection.append(Strings.DB_AND);
+			}
+			selection.append('(').append(FeedData.FeedColumns.WIFIONLY).append("=0 or ").append(FeedData.FeedColumns.WIFIONLY).append(" IS NULL)"); // "IS NOT 1" does not work on 2.1
 		}
 		
-		Cursor cursor = context.getContentResolver().query(feedId == null ? FeedData.FeedColumns.CONTENT_URI : FeedData.FeedColumns.CONTENT_URI(feedId), null, selection, null, null); // no managed query here
+		Cursor cursor = context.getContentResolver().query(feedId == null ? FeedData.FeedColumns.CONTENT_URI : FeedData.FeedColumns.CONTENT_URI(feedId), null, selection.length() > 0 ? selection.toString() : null, null, null); // no managed query here
 		
 		int urlPosition = cursor.getColumnIndex(FeedData.FeedColumns.URL);
 		
@@ -230,351 +352,621 @@ public class FetcherService extends IntentService {
 		
 		int fetchmodePosition = cursor.getColumnIndex(FeedData.FeedColumns.FETCHMODE);
 		
-		int iconPosition = cursor.getColumnIndex(FeedData.FeedColumns.ICON);
+		int iconHostPosition = cursor.getColumnIndex(FeedData.FeedColumns.ICONHOST);
 		
 		int imposeUseragentPosition = cursor.getColumnIndex(FeedData.FeedColumns.IMPOSE_USERAGENT);
 		
-		boolean followHttpHttpsRedirects = preferences.getBoolean(Strings.SETTINGS_HTTPHTTPSREDIRECTS, false);
+		int etagPosition = cursor.getColumnIndex(FeedData.FeedColumns.ETAG);
+		
+		int lastModifiedPosition = cursor.getColumnIndex(FeedData.FeedColumns.LASTMODIFIED);
+		
+		int publishIntervalPosition = cursor.getColumnIndex(FeedData.FeedColumns.PUBLISHINTERVAL);
+		
+		int failuresPosition = cursor.getColumnIndex(FeedData.FeedColumns.FAILURES);
 		
-		int result = 0;
+		int bodyDigestPosition = cursor.getColumnIndex(FeedData.FeedColumns.BODYDIGEST);
 		
-		if (handler == null) {
-			handler = new RSSHandler(context);
+		/* the cursor must not be shared between the workers, so we copy the needed values first */
+		HostScheduler<Feed> scheduler = new HostScheduler<Feed>(MAX_REQUESTS_PER_HOST);
+		
+		/* the feeds an interrupted run has left are queued first, the others follow */
+		HashSet<String> previousPendingFeedIds = allFeeds ? getPendingFeedIds() : null;
+		
+		Vector<Feed> laterFeeds = new Vector<Feed>();
+		
+		pendingFeedIds = allFeeds ? new HashSet<String>() : null;
+		while (cursor.moveToNext()) {
+			Feed feed = new Feed();
+			
+			feed.id = cursor.getString(idPosition);
+			feed.url = cursor.getString(urlPosition);
+			feed.title = cursor.getString(titlePosition);
+			feed.lastUpdate = cursor.getLong(lastUpdatePosition);
+			feed.fetchMode = cursor.getInt(fetchmodePosition);
+			feed.iconHost = cursor.getString(iconHostPosition);
+			feed.imposeUserAgent = !cursor.isNull(imposeUseragentPosition) && cursor.getInt(imposeUseragentPosition) == 1;
+			feed.etag = cursor.getString(etagPosition);
+			feed.lastModified = cursor.getString(lastModifiedPosition);
+			feed.publishInterval = cursor.getLong(publishIntervalPosition);
+			feed.failures = cursor.getInt(failuresPosition);
+			feed.bodyDigest = cursor.getString(bodyDigestPosition);
+			
+			if (previousPendingFeedIds != null && !previousPendingFeedIds.contains(feed.id)) {
+				laterFeeds.add(feed);
+			} else {
+				addFeed(scheduler, feed);
+			}
+			if (pendingFeedIds != null) {
+				pendingFeedIds.add(feed.id);
+			}
+		}
+		cursor.close();
+		for (Feed feed : laterFeeds) {
+			addFeed(scheduler, feed);
 		}
-		handler.setEfficientFeedParsing(preferences.getBoolean(Strings.SETTINGS_EFFICIENTFEEDPARSING, true));
-		handler.setFetchImages(preferences.getBoolean(Strings.SETTINGS_FETCHPICTURES, false));
+		savePendingFeedIds();
+		
+		long deadline = 0;
 		
-		while(!destroyed && cursor.moveToNext()) {
-			String id = cursor.getString(idPosition);
+		try {
+			long duration = Long.parseLong(preferences.getString(Strings.SETTINGS_REFRESHDEADLINE, ZERO));
 			
-			boolean imposeUserAgent = !cursor.isNull(imposeUseragentPosition) && cursor.getInt(imposeUseragentPosition) == 1;
+			if (duration > 0) {
+				deadline = now + duration;
+			}
+		} catch (Exception e) {
+			
+		}
+		this.scheduler = scheduler;
+		iconFetcher = new IconFetcher(context, transport);
+		if (preferences.getBoolean(Strings.SETTINGS_FETCHPICTURES, false)) {
+			int maxImageEdge = 0;
 			
-			HttpURLConnection connection = null;
+			int imageQuality = 0;
 			
 			try {
-				String feedUrl = cursor.getString(urlPosition);
-				
-				connection = setupConnection(feedUrl, imposeUserAgent, followHttpHttpsRedirects);
-				
-				String redirectHost = connection.getURL().getHost(); // Feed icon should be fetched from target site, not from feedburner, so we're tracking all redirections
-				
-				String contentType = connection.getContentType();
-				
-				int fetchMode = cursor.getInt(fetchmodePosition);
+				maxImageEdge = context.getResources().getDisplayMetrics().widthPixels * Integer.parseInt(preferences.getString(Strings.SETTINGS_IMAGEMAXEDGE, ZERO)) / 100;
+				imageQuality = Integer.parseInt(preferences.getString(Strings.SETTINGS_IMAGEQUALITY, ZERO));
+			} catch (Exception e) {
 				
-				String iconUrl = null;
+			}
+			imageDownloader = new ImageDownloader(context, transport, IMAGEDOWNLOADER_THREADS, maxImageEdge, imageQuality);
+			imageDownloader.enqueueMissing();
+		} else {
+			imageDownloader = null;
+		}
+		
+		int threadCount = 1;
+		
+		try {
+			threadCount = Math.max(1, Integer.parseInt(preferences.getString(Strings.SETTINGS_REFRESHTHREADS, DEFAULT_REFRESHTHREADS)));
+		} catch (Exception exception) {
+			
+		}
+		threadCount = Math.min(threadCount, scheduler.size());
+		maxDescriptionLength = RSSHandler.DEFAULT_MAXDESCRIPTIONLENGTH;
+		try {
+			maxDescriptionLength = Math.max(1, Integer.parseInt(preferences.getString(Strings.SETTINGS_ENTRYMAXLENGTH, Integer.toString(RSSHandler.DEFAULT_MAXDESCRIPTIONLENGTH))));
+		} catch (Exception exception) {
+			
+		}
+		keepFullDescriptions = preferences.getBoolean(Strings.SETTINGS_ENTRYKEEPFULL, false);
+		
+		AtomicInteger result = new AtomicInteger();
+		
+		/* the workers fetch and parse in parallel, a single writer stores what they have parsed */
+		entryWriter = new EntryWriter(context, imageDownloader, result);
+		if (threadCount > 0) {
+			boolean followHttpHttpsRedirects = preferences.getBoolean(Strings.SETTINGS_HTTPHTTPSREDIRECTS, false);
+			
+			ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+			
+			for (int n = 0; n < threadCount; n++) {
+				executor.execute(new RefreshWorker(context, scheduler, followHttpHttpsRedirects));
+			}
+			executor.shutdown();
+			try {
+				while (!executor.awaitTermination(1, TimeUnit.SECONDS)) { // the workers end on their own if the service gets destroyed
+					if (deadline > 0 && System.currentTimeMillis() > deadline) {
+						scheduler.cancel(); // running refreshes are finished, the queued feeds stay in the checkpoint
+					}
+				}
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+			}
+		}
+		entryWriter.shutdown(); // the writer queues the images, so it ends before the downloader
+		iconFetcher.shutdown(getRemainingTime(deadline, ICONFETCHER_TIMEOUT));
+		if (imageDownloader != null) {
+			imageDownloader.shutdown(getRemainingTime(deadline, IMAGEDOWNLOADER_TIMEOUT));
+		}
+		if (!destroyed) {
+			postponeSkippedFeeds(context, scheduler);
+			savePendingFeedIds();
+		}
+		if (result.get() > 0) {
+			context.sendBroadcast(new Intent(Strings.ACTION_UPDATEWIDGET).putExtra(Strings.COUNT, result.get()));
+		}
+		return result.get();
+	}
+	
+	/**
+	 * Takes feeds from the shared scheduler until it is empty or the service is destroyed.
+	 * Every worker uses its own handler as the handler keeps the state of the current feed.
+	 */
+	private class RefreshWorker implements Runnable {
+		private Context context;
+		
+		private HostScheduler<Feed> scheduler;
+		
+		private boolean followHttpHttpsRedirects;
+		
+		public RefreshWorker(Context context, HostScheduler<Feed> scheduler, boolean followHttpHttpsRedirects) {
+			this.context = context;
+			this.scheduler = scheduler;
+			this.followHttpHttpsRedirects = followHttpHttpsRedirects;
+		}
+		
+		public void run() {
+			RSSHandler handler = new RSSHandler(context);
+			
+			handler.setEfficientFeedParsing(preferences.getBoolean(Strings.SETTINGS_EFFICIENTFEEDPARSING, true));
+			handler.setMaxDescriptionLength(maxDescriptionLength, keepFullDescriptions);
+			handler.setEntryWriter(entryWriter);
+			handler.setFetchImages(imageDownloader != null);
+			handlers.add(handler);
+			try {
+				Feed feed = null;
 				
-				handler.init(new Date(cursor.getLong(lastUpdatePosition)), id, cursor.getString(titlePosition), feedUrl);
-				if (fetchMode == 0) {
-					if (contentType != null && contentType.startsWith(CONTENT_TYPE_TEXT_HTML)) {
-						BufferedReader reader = new BufferedReader(new InputStreamReader(getConnectionInputStream(connection)));
-						
-						String line = null;
-						
-						String newFeedUrl = null;
-						
-						while ((line = reader.readLine()) != null) {
-							if (line.indexOf(HTML_BODY) > -1) {
-								break;
-							} else {
-								if (newFeedUrl == null) {
-									Matcher matcher = feedLinkPattern.matcher(line);
-									
-									if (matcher.find()) { // not "while" as only one link is needed
-										newFeedUrl = getHref(matcher.group(), feedUrl);
-									}
-								}
-								if (iconUrl == null) {
-									Matcher matcher = feedIconPattern.matcher(line);
-									
-									if (matcher.find()) { // not "while" as only one link is needed
-										iconUrl = getHref(matcher.group(), feedUrl);
-									}
-								}
-								if (newFeedUrl != null && iconUrl != null) {
-									break;
-								}
-							}
-						}
-						
-						if (newFeedUrl != null) {
-							redirectHost = connection.getURL().getHost();
-							connection.disconnect();
-							connection = setupConnection(newFeedUrl, imposeUserAgent, followHttpHttpsRedirects);
-							contentType = connection.getContentType();
-							handler.initFeedBaseUrl(newFeedUrl);
-							
-							ContentValues values = new ContentValues();
-							
-							values.put(FeedData.FeedColumns.URL, newFeedUrl);
-							context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(id), values, null, null);
-						}
+				while (!destroyed && (feed = scheduler.take()) != null) {
+					try {
+						refreshFeed(context, handler, scheduler, feed, followHttpHttpsRedirects);
+					} finally {
+						handler.finish(null, false); // the entries that are parsed are written even if the refresh has been aborted
+						scheduler.release(feed);
 					}
+				}
+			} finally {
+				handlers.remove(handler);
+			}
+		}
+	}
+	
+	private void refreshFeed(Context context, RSSHandler handler, HostScheduler<Feed> scheduler, Feed feed, boolean followHttpHttpsRedirects) {
+		String id = feed.id;
+		
+		boolean imposeUserAgent = feed.imposeUserAgent;
+		
+		HttpConnection connection = null;
+		
+		String etag = null;
+		
+		String lastModified = null;
+		
+		boolean parseStarted = false;
+		
+		boolean parsed = false;
+		
+		String bodyDigest = null;
+		
+		FetchLog log = new FetchLog();
+		
+		ContentValues values = new ContentValues();
+		
+		String feedUrl = feed.url;
+		
+		handler.init(new Date(feed.lastUpdate), id, feed.title, feedUrl, log); // the handler collects all writes of this refresh
+		try {
+			
+			connection = transport.open(new URL(feedUrl), imposeUserAgent, followHttpHttpsRedirects, feed.etag, feed.lastModified, log);
+			
+			String redirectHost = connection.getURL().getHost(); // Feed icon should be fetched from target site, not from feedburner, so we're tracking all redirections
+			
+			scheduler.setHost(feed, redirectHost);
+			
+			String contentType = connection.getContentType();
+			
+			int fetchMode = feed.fetchMode;
+			
+			String iconUrl = null;
+			
+			if (destroyed) {
+				handler.cancel(); // the service may have been destroyed while the connection was opened
+				return;
+			}
+			
+			int responseCode = connection.getResponseCode();
+			
+			log.setStatus(responseCode);
+			if (responseCode == HTTP_TOOMANYREQUESTS || responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+				if (scheduler.retryLater(feed, connection.getHeaderField(KEY_RETRYAFTER))) {
+					log.save(context, id);
+					return;
+				} else {
+					throw new IOException(connection.getResponseMessage());
+				}
+			} else if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				// nothing has changed since the last successful parsing, so there is nothing to parse
+				saveUnchanged(context, feed, feed.etag, feed.lastModified, log);
+				return;
+			}
+			if (fetchMode == 0) {
+				if (contentType != null && contentType.startsWith(CONTENT_TYPE_TEXT_HTML)) {
+					HtmlHeadParser headParser = new HtmlHeadParser(connection.getInputStream(log), contentType, connection.getURL().toString());
 					
-					if (contentType != null) {
-						int index = contentType.indexOf(CHARSET);
-						
-						if (index > -1) {
-							int index2 = contentType.indexOf(';', index);
-							
-							try {
-								Xml.findEncodingByName(index2 > -1 ?contentType.substring(index+8, index2) : contentType.substring(index+8));
-								fetchMode = FETCHMODE_DIRECT;
-							} catch (UnsupportedEncodingException usee) {
-								fetchMode = FETCHMODE_REENCODE;
-							}
-						} else {
-							fetchMode = FETCHMODE_REENCODE;
-						}
-						
-					} else {
-						BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(getConnectionInputStream(connection)));
-						
-						char[] chars = new char[20];
-						
-						int length = bufferedReader.read(chars);
-						
-						String xmlDescription = new String(chars, 0, length);
-						
+					String newFeedUrl = headParser.getFeedUrl();
+					
+					iconUrl = headParser.getIconUrl();
+					
+					if (newFeedUrl != null) {
 						redirectHost = connection.getURL().getHost();
-						connection.disconnect();
-						connection = setupConnection(connection.getURL(), imposeUserAgent, followHttpHttpsRedirects);
+						connection.release();
+						connection = null; // a failing open(..) must not release it twice
+						connection = transport.open(new URL(newFeedUrl), imposeUserAgent, followHttpHttpsRedirects, log);
+						contentType = connection.getContentType();
+						log.setStatus(connection.getResponseCode());
+						handler.initFeedBaseUrl(newFeedUrl);
 						
-						int start = xmlDescription != null ?  xmlDescription.indexOf(ENCODING) : -1;
+						ContentValues urlValues = new ContentValues();
 						
-						if (start > -1) {
-							try {
-								Xml.findEncodingByName(xmlDescription.substring(start+10, xmlDescription.indexOf('"', start+11)));
-								fetchMode = FETCHMODE_DIRECT;
-							} catch (UnsupportedEncodingException usee) {
-								fetchMode = FETCHMODE_REENCODE;
-							}
-						} else {
-							fetchMode = FETCHMODE_DIRECT; // absolutely no encoding information found
-						}
+						urlValues.put(FeedData.FeedColumns.URL, newFeedUrl);
+						context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(id), urlValues, null, null);
 					}
-					
-					ContentValues values = new ContentValues();
-					
-					values.put(FeedData.FeedColumns.FETCHMODE, fetchMode);
-					context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(id), values, null, null);
 				}
+			}
+			
+			/* the charset is determined on the stream that gets parsed, so there is no second request */
+			CharsetSniffer sniffer = new CharsetSniffer(connection.getInputStream(log), contentType);
+			
+			if (fetchMode == 0) {
+				fetchMode = sniffer.getCharset() == null || sniffer.isParserCharset() ? FETCHMODE_DIRECT : FETCHMODE_REENCODE;
 				
-				/* check and optionally find favicon */
-				byte[] iconBytes = cursor.getBlob(iconPosition);
+				ContentValues fetchModeValues = new ContentValues();
 				
-				if (iconBytes == null) {
-					if (iconUrl == null) {
-						String baseUrl = new StringBuilder(connection.getURL().getProtocol()).append(Strings.PROTOCOL_SEPARATOR).append(redirectHost).toString();
-						HttpURLConnection iconURLConnection = setupConnection(new URL(baseUrl), imposeUserAgent, followHttpHttpsRedirects);
-						try {
-							BufferedReader reader = new BufferedReader(new InputStreamReader(getConnectionInputStream(iconURLConnection)));
-							String line = null;
-							while ((line = reader.readLine()) != null) {
-								if (line.indexOf(HTML_BODY) > -1) {
-									break;
-								} else {
-									Matcher matcher = feedIconPattern.matcher(line);
-									if (matcher.find()) { // not "while" as only one link is needed
-										iconUrl = getHref(matcher.group(), baseUrl);
-										if (iconUrl != null) {
-											break;
-										}
-									}
-								}
-							}
-						} catch (Exception e) {
-						} finally {
-							iconURLConnection.disconnect();
-						}
-
-						if (iconUrl == null) {
-							iconUrl = new StringBuilder(baseUrl).append(Strings.FILE_FAVICON).toString();
-						}
-					}
-					HttpURLConnection iconURLConnection = setupConnection(new URL(iconUrl), imposeUserAgent, followHttpHttpsRedirects);
+				fetchModeValues.put(FeedData.FeedColumns.FETCHMODE, fetchMode);
+				context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(id), fetchModeValues, null, null);
+			}
+			
+			if (!redirectHost.equals(feed.iconHost)) {
+				ContentValues iconHostValues = new ContentValues();
+				
+				iconHostValues.put(FeedData.FeedColumns.ICONHOST, redirectHost);
+				context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(id), iconHostValues, null, null);
+			}
+			iconFetcher.fetch(redirectHost, connection.getURL().getProtocol(), iconUrl, imposeUserAgent, followHttpHttpsRedirects); // the icon is looked up next to the parsing
+			
+			etag = connection.getHeaderField(KEY_ETAG);
+			lastModified = connection.getHeaderField(KEY_LASTMODIFIED);
+			
+			InputStream bodyInputStream = sniffer.getInputStream();
+			
+			/*
+			 * many servers send no validators or new ones for the same content, so the body itself is compared;
+			 * only a prefix is read ahead such that the rest still streams into the parser
+			 */
+			byte[] prefix = new byte[DIGESTPREFIX];
+			
+			int length = 0;
+			
+			int n;
+			
+			while (length < DIGESTPREFIX && (n = bodyInputStream.read(prefix, length, DIGESTPREFIX - length)) > 0) {
+				length += n;
+			}
+			
+			boolean complete = length < DIGESTPREFIX;
+			
+			if (complete || handler.isEfficientFeedParsing()) {
+				/* new entries come first, so the efficient parsing would stop within the prefix of an unchanged feed anyway */
+				MessageDigest digest = MessageDigest.getInstance(FeedData.MD5);
+				
+				digest.update(prefix, 0, length);
+				if (!complete) {
+					digest.update(Integer.toString(connection.getContentLength()).getBytes()); // a change further down mostly changes the length
+				}
+				bodyDigest = FeedData.toHex(digest.digest());
+				if (bodyDigest.equals(feed.bodyDigest)) {
+					saveUnchanged(context, feed, etag, lastModified, log);
+					return;
+				}
+			}
+			bodyInputStream = complete ? new BodyInputStream(prefix, length) : new SequenceInputStream(new ByteArrayInputStream(prefix, 0, length), bodyInputStream);
+			parseStarted = true;
+			log.startParsing();
+			switch (sniffer.getCharset() == null || sniffer.isParserCharset() ? fetchMode : FETCHMODE_REENCODE) {
+				default:
+				case FETCHMODE_DIRECT: {
+					InputStream inputStream = bodyInputStream;
 					
-					try {
-						iconBytes = getBytes(getConnectionInputStream(iconURLConnection));
-						ContentValues values = new ContentValues();
-						
-						values.put(FeedData.FeedColumns.ICON, iconBytes);
-						context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(id), values, null, null);
-					} catch (Exception e) {
-						ContentValues values = new ContentValues();
+					if (sniffer.getCharset() != null) {
+						handler.setInputStream(inputStream);
+						Xml.parse(inputStream, Xml.findEncodingByName(sniffer.getCharset()), handler);
+					} else {
+						InputStreamReader reader = new InputStreamReader(inputStream);
 						
-						values.put(FeedData.FeedColumns.ICON, new byte[0]); // no icon found or error
-						context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(id), values, null, null);
-					} finally {
-						iconURLConnection.disconnect();
+						handler.setReader(reader);
+						Xml.parse(reader, handler);
 					}
-					
+					break;
 				}
-				switch (fetchMode) {
-					default:
-					case FETCHMODE_DIRECT: {
-						if (contentType != null) {
-							int index = contentType.indexOf(CHARSET);
-							
-							int index2 = contentType.indexOf(';', index);
-							
-							InputStream inputStream = getConnectionInputStream(connection);
-							
-							handler.setInputStream(inputStream);
-							Xml.parse(inputStream, Xml.findEncodingByName(index2 > -1 ?contentType.substring(index+8, index2) : contentType.substring(index+8)), handler);
-						} else {
-							InputStreamReader reader = new InputStreamReader(getConnectionInputStream(connection));
-							
-							handler.setReader(reader);
-							Xml.parse(reader, handler);
+				case FETCHMODE_REENCODE: {
+					/* the parser cannot decode this charset itself, so the body is decoded while it streams in */
+					Reader reader = null;
+					
+					if (sniffer.getCharset() != null) {
+						try {
+							reader = new InputStreamReader(bodyInputStream, sniffer.getCharset());
+						} catch (UnsupportedEncodingException e) {
+							// the platform does not know it either, so its default is used
 						}
-						break;
 					}
-					case FETCHMODE_REENCODE: {
-						ByteArrayOutputStream ouputStream = new ByteArrayOutputStream();
-						
-						InputStream inputStream = getConnectionInputStream(connection);
-						
-						byte[] byteBuffer = new byte[4096];
-						
-						int n;
-						
-						while ( (n = inputStream.read(byteBuffer)) > 0 ) {
-							ouputStream.write(byteBuffer, 0, n);
-						}
-						
-						String xmlText = ouputStream.toString();
-						
-						int start = xmlText != null ?  xmlText.indexOf(ENCODING) : -1;
-						
-						if (start > -1) {
-							Xml.parse(new StringReader(new String(ouputStream.toByteArray(), xmlText.substring(start+10, xmlText.indexOf('"', start+11)))), handler);
-						} else {
-							// use content type
-							if (contentType != null) {
-								
-								int index = contentType.indexOf(CHARSET);
-								
-								if (index > -1) {
-									int index2 = contentType.indexOf(';', index);
-									
-									try {
-										StringReader reader = new StringReader(new String(ouputStream.toByteArray(), index2 > -1 ?contentType.substring(index+8, index2) : contentType.substring(index+8)));
-										
-										handler.setReader(reader);
-										Xml.parse(reader, handler);
-									} catch (Exception e) {
-										
-									}
-								} else {
-									StringReader reader = new StringReader(new String(ouputStream.toByteArray()));
-									
-									handler.setReader(reader);
-									Xml.parse(reader, handler);
-									
-								}
-							}
-						}
-						break;
+					if (reader == null) {
+						reader = new InputStreamReader(bodyInputStream);
 					}
+					handler.setReader(reader);
+					Xml.parse(reader, handler);
+					break;
 				}
-				connection.disconnect();
-			} catch (FileNotFoundException e) {
-				if (!handler.isDone() && !handler.isCancelled()) {
-					ContentValues values = new ContentValues();
-					values.put(FeedData.FeedColumns.FETCHMODE, 0); // resets the fetchmode to determine it again later
-					values.put(FeedData.FeedColumns.ERROR, context.getString(R.string.error_feederror));
-					context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(id), values, null, null);
-				}
-			} catch (Throwable e) {
-				if (!handler.isDone() && !handler.isCancelled()) {
-					ContentValues values = new ContentValues();
-					values.put(FeedData.FeedColumns.FETCHMODE, 0); // resets the fetchmode to determine it again later
-					values.put(FeedData.FeedColumns.ERROR, e.getMessage());
-					context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(id), values, null, null);
-				}
-			} finally {
-				if (connection != null) {
-					connection.disconnect();
+			}
+			parsed = true;
+		} catch (FileNotFoundException e) {
+			if (!handler.isDone() && !handler.isCancelled()) {
+				values.put(FeedData.FeedColumns.FETCHMODE, 0); // resets the fetchmode to determine it again later
+				values.put(FeedData.FeedColumns.ERROR, context.getString(R.string.error_feederror));
+				log.setError(context.getString(R.string.error_feederror));
+			}
+		} catch (Throwable e) {
+			if (!handler.isDone() && !handler.isCancelled()) {
+				values.put(FeedData.FeedColumns.FETCHMODE, 0); // resets the fetchmode to determine it again later
+				values.put(FeedData.FeedColumns.ERROR, e.getMessage());
+				log.setError(e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+			}
+		} finally {
+			if (connection != null) {
+				connection.release();
+			}
+		}
+		
+		if (!destroyed) {
+			log.stopParsing(handler);
+			
+			/* a cancelled handler has stopped at known entries which counts as success unless the service has been destroyed */
+			if (parseStarted && (parsed || handler.isDone())) {
+				if (!TextUtils.equals(etag, feed.etag) || !TextUtils.equals(lastModified, feed.lastModified)) {
+					values.put(FeedData.FeedColumns.ETAG, etag);
+					values.put(FeedData.FeedColumns.LASTMODIFIED, lastModified);
 				}
+				
+				long publishInterval = getPublishInterval(feed.publishInterval, feed.lastUpdate, handler.getPublishDates());
+				
+				values.put(FeedData.FeedColumns.PUBLISHINTERVAL, publishInterval);
+				values.put(FeedData.FeedColumns.BODYDIGEST, bodyDigest); // null if the body has not been compared
+				putNextRefresh(values, publishInterval, Math.max(feed.lastUpdate, handler.getNewestEntryDate()));
+				putSuccess(values, feed);
+			} else {
+				putFailure(values, feed.failures + 1);
 			}
-			result += handler.getNewCount();
+			/* the values follow the entries, so an error replaces the state the parsed entries have set */
+			handler.finish(values, true);
+			setDone(feed); // a failed feed is done as well, its backoff decides when it is tried again
 		}
-		cursor.close();
+	}
+	
+	/**
+	 * Adds the gaps between the given publish dates to the smoothed publish interval.
+	 * 
+	 * @param publishInterval the current smoothed interval or 0 if there is none yet
+	 * @param lastPublishDate the date of the newest entry before this refresh
+	 * @param publishDates the dates of the new entries
+	 */
+	private static long getPublishInterval(long publishInterval, long lastPublishDate, long[] publishDates) {
+		Arrays.sort(publishDates);
+		
+		long previousDate = lastPublishDate;
 		
-		if (result > 0) {
-			context.sendBroadcast(new Intent(Strings.ACTION_UPDATEWIDGET).putExtra(Strings.COUNT, result));
+		for (long date : publishDates) {
+			if (previousDate > 0 && date > previousDate) {
+				long gap = date - previousDate;
+				
+				publishInterval = publishInterval > 0 ? publishInterval + (gap - publishInterval) / PUBLISHINTERVAL_SMOOTHING : gap;
+			}
+			previousDate = Math.max(previousDate, date);
 		}
-		return result;
+		return publishInterval;
+	}
+	
+	/**
+	 * Determines the next refresh from the publish interval. A feed that has been silent for
+	 * longer than its interval is treated as if the silence was its interval, so dormant
+	 * feeds slow down until they publish again.
+	 */
+	private void putNextRefresh(ContentValues values, long publishInterval, long lastPublishDate) {
+		long now = System.currentTimeMillis();
+		
+		long interval = Math.max(publishInterval, lastPublishDate > 0 && lastPublishDate < now ? now - lastPublishDate : 0) / PUBLISHINTERVAL_DIVISOR;
+		
+		values.put(FeedData.FeedColumns.NEXTREFRESH, now + Math.max(refreshInterval, Math.min(MAX_REFRESHINTERVAL, interval)));
 	}
+	
+	/**
+	 * Stores the result of a refresh whose response is known to be unchanged.
+	 * The validators are kept such that the next request may be answered with 304.
+	 */
+	private void saveUnchanged(Context context, Feed feed, String etag, String lastModified, FetchLog log) {
+		ContentValues values = new ContentValues();
 		
-	private static String getHref(String line, String baseUrl) {
-		int posStart = line.indexOf(HREF);
+		if (!TextUtils.equals(etag, feed.etag) || !TextUtils.equals(lastModified, feed.lastModified)) {
+			values.put(FeedData.FeedColumns.ETAG, etag);
+			values.put(FeedData.FeedColumns.LASTMODIFIED, lastModified);
+		}
+		values.put(FeedData.FeedColumns.LASTUPDATE, System.currentTimeMillis());
+		values.putNull(FeedData.FeedColumns.ERROR);
+		putNextRefresh(values, feed.publishInterval, feed.lastUpdate);
+		putSuccess(values, feed);
+		context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(feed.id), values, null, null);
+		setDone(feed);
+		log.save(context, feed.id);
+	}
+	
+	private static void addFeed(HostScheduler<Feed> scheduler, Feed feed) {
+		String host = Uri.parse(feed.url).getHost();
 		
-		if (posStart > -1) {
-			String url = line.substring(posStart+6, line.indexOf('"', posStart+10)).replace(Strings.AMP_SG, Strings.AMP);
-			
-			if (url.startsWith(Strings.SLASH)) {
-				int index = baseUrl.indexOf('/', 8);
+		scheduler.add(feed, host != null ? host : feed.url);
+	}
+	
+	private static long getRemainingTime(long deadline, long timeout) {
+		return deadline > 0 ? Math.max(0, Math.min(timeout, deadline - System.currentTimeMillis())) : timeout;
+	}
+	
+	private static HashSet<String> getPendingFeedIds() {
+		HashSet<String> feedIds = new HashSet<String>();
+		
+		String value = preferences.getString(Strings.PREFERENCE_PENDINGFEEDS, null);
+		
+		if (value != null && value.length() > 0) {
+			feedIds.addAll(Arrays.asList(value.split(Strings.COMMA)));
+		}
+		return feedIds;
+	}
+	
+	/**
+	 * Removes the feed from the checkpoint. The checkpoint is saved immediately as the
+	 * process may be killed without any notice.
+	 */
+	private void setDone(Feed feed) {
+		HashSet<String> feedIds = pendingFeedIds;
+		
+		if (feedIds != null) {
+			synchronized (feedIds) {
+				if (feedIds.remove(feed.id)) {
+					savePendingFeedIds();
+				}
+			}
+		}
+	}
+	
+	private void savePendingFeedIds() {
+		HashSet<String> feedIds = pendingFeedIds;
+		
+		if (feedIds != null) {
+			synchronized (feedIds) {
+				SharedPreferences.Editor editor = preferences.edit();
 				
-				if (index > -1) {
-					url = baseUrl.substring(0, index)+url;
+				if (feedIds.isEmpty()) {
+					editor.remove(Strings.PREFERENCE_PENDINGFEEDS);
 				} else {
-					url = baseUrl+url;
+					StringBuilder builder = new StringBuilder();
+					
+					for (String feedId : feedIds) {
+						if (builder.length() > 0) {
+							builder.append(Strings.COMMA);
+						}
+						builder.append(feedId);
+					}
+					editor.putString(Strings.PREFERENCE_PENDINGFEEDS, builder.toString());
 				}
-			} else if (!url.startsWith(Strings.HTTP) && !url.startsWith(Strings.HTTPS)) {
-				url = new StringBuilder(baseUrl).append('/').append(url).toString();
+				editor.commit();
 			}
-			return url;
-		} else {
-			return null;
 		}
 	}
 	
-	private static final HttpURLConnection setupConnection(String url, boolean imposeUseragent, boolean followHttpHttpsRedirects) throws IOException, NoSuchAlgorithmException, KeyManagementException {
-		return setupConnection(new URL(url), imposeUseragent, followHttpHttpsRedirects);
+	private static void putSuccess(ContentValues values, Feed feed) {
+		if (feed.failures > 0) {
+			values.put(FeedData.FeedColumns.FAILURES, 0);
+			values.putNull(FeedData.FeedColumns.BACKOFFUNTIL);
+		}
 	}
 	
-	private static final HttpURLConnection setupConnection(URL url, boolean imposeUseragent, boolean followHttpHttpsRedirects) throws IOException, NoSuchAlgorithmException, KeyManagementException {
-		return setupConnection(url, imposeUseragent, followHttpHttpsRedirects, 0);
+	/**
+	 * Postpones the feeds whose host is blocked for longer than the scheduler waits
+	 * until the host accepts requests again, otherwise the alarm would fire for them
+	 * again and again.
+	 */
+	private void postponeSkippedFeeds(Context context, HostScheduler<Feed> scheduler) {
+		HashMap<Feed, Long> skippedFeeds = scheduler.getSkippedItems();
+		
+		if (!skippedFeeds.isEmpty()) {
+			ContentValues values = new ContentValues();
+			
+			String error = context.getString(R.string.error_retrylater);
+			
+			for (Feed feed : skippedFeeds.keySet()) {
+				long time = skippedFeeds.get(feed);
+				
+				values.put(FeedData.FeedColumns.ERROR, error);
+				values.put(FeedData.FeedColumns.BACKOFFUNTIL, time);
+				values.put(FeedData.FeedColumns.NEXTREFRESH, Math.max(time, System.currentTimeMillis() + refreshInterval));
+				context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(feed.id), values, null, null);
+				setDone(feed);
+			}
+		}
+	}
+	
+	/**
+	 * Backs the feed off exponentially. Once it failed PAUSE_FAILURES times in a row, the
+	 * circuit opens: the feed is paused and only probed rarely until a refresh succeeds.
+	 */
+	private void putFailure(ContentValues values, int failures) {
+		long backoff = failures >= PAUSE_FAILURES ? PAUSE_PROBEINTERVAL : Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures - 1, 16));
+		
+		long now = System.currentTimeMillis();
+		
+		values.put(FeedData.FeedColumns.FAILURES, failures);
+		values.put(FeedData.FeedColumns.BACKOFFUNTIL, now + backoff);
+		values.put(FeedData.FeedColumns.NEXTREFRESH, now + Math.max(refreshInterval, backoff)); // the alarm must not wake up for a feed that is skipped
 	}
 	
-	private static final HttpURLConnection setupConnection(URL url, boolean imposeUseragent, boolean followHttpHttpsRedirects, int cycle) throws IOException, NoSuchAlgorithmException, KeyManagementException {
-		HttpURLConnection connection = proxy == null ? (HttpURLConnection) url.openConnection() : (HttpURLConnection) url.openConnection(proxy);
+	private static class Feed {
+		String id;
+		
+		String url;
+		
+		String title;
+		
+		long lastUpdate;
+		
+		int fetchMode;
+		
+		String iconHost;
+		
+		boolean imposeUserAgent;
+		
+		String etag;
+		
+		String lastModified;
+		
+		long publishInterval;
+		
+		int failures;
 		
-		connection.setDoInput(true);
-		connection.setDoOutput(false);
-		if (imposeUseragent) {
-			connection.setRequestProperty(KEY_USERAGENT, VALUE_USERAGENT); // some feeds need this to work properly
+		String bodyDigest;
+	}
+	
+	/**
+	 * A buffered body that behaves like the network stream when the handler closes
+	 * it to stop the parsing.
+	 */
+	private static class BodyInputStream extends ByteArrayInputStream {
+		private volatile boolean closed;
+		
+		public BodyInputStream(byte[] body, int length) {
+			super(body, 0, length);
 		}
-		connection.setConnectTimeout(30000);
-		connection.setReadTimeout(30000);
-		connection.setUseCaches(false);
 		
-		if (url.getUserInfo() != null) {
-			connection.setRequestProperty("Authorization", "Basic "+BASE64.encode(url.getUserInfo().getBytes()));
+		@Override
+		public synchronized int read() {
+			return closed ? -1 : super.read();
 		}
-		connection.setRequestProperty("connection", "close"); // Workaround for android issue 7786
-		connection.setRequestProperty("accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
-		connection.connect();
 		
-		String location = connection.getHeaderField("Location");
+		@Override
+		public synchronized int read(byte[] buffer, int offset, int count) {
+			return closed ? -1 : super.read(buffer, offset, count);
+		}
 		
-		if (location != null && (url.getProtocol().equals(Strings._HTTP) && location.startsWith(Strings.HTTPS) || url.getProtocol().equals(Strings._HTTPS) && location.startsWith(Strings.HTTP))) {
-			// if location != null, the system-automatic redirect has failed which indicates a protocol change
-			if (followHttpHttpsRedirects) {
-				connection.disconnect();
-					
-				if (cycle < 5) {
-					return setupConnection(new URL(location), imposeUseragent, followHttpHttpsRedirects, cycle+1);
-				} else {
-					throw new IOException("Too many redirects.");
-				}
-			} else {
-				throw new IOException("https<->http redirect - enable in settings");
-			}
+		@Override
+		public void close() throws IOException {
+			closed = true;
 		}
-		return connection;
 	}
 	
 	public static byte[] getBytes(InputStream inputStream) throws IOException {
@@ -594,18 +986,4 @@ public class FetcherService extends IntentService {
 		inputStream.close();
 		return result;
 	}
-	
-	/**
-	 * This is a small wrapper for getting the properly encoded inputstream if is is gzip compressed
-	 * and not properly recognized.
-	 */
-	private static InputStream getConnectionInputStream(HttpURLConnection connection) throws IOException {
-		InputStream inputStream = connection.getInputStream();
-		
-		if (GZIP.equals(connection.getContentEncoding()) && !(inputStream instanceof GZIPInputStream)) {
-			return new GZIPInputStream(inputStream);
-		} else {
-			return inputStream;
-		}
-	}
 }
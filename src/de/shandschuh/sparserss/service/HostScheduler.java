@@ -0,0 +1,309 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.os.SystemClock;
+import de.shandschuh.sparserss.handler.DateParser;
+
+/**
+ * Hands out queued items such that at most a given number of requests
+ * run against the same host at the same time. Hosts that asked us to
+ * slow down via Retry-After are left alone until the given time while
+ * the items of all other hosts are handed out in queue order.
+ */
+public class HostScheduler<T> {
+	private static final long DEFAULT_RETRYDELAY = 60000;
+	
+	/** Items of hosts that are blocked longer than this are skipped for the current run, see getSkippedItems() */
+	private static final long MAX_RETRYDELAY = 120000;
+	
+	private static final int MAX_RETRIES = 1;
+	
+	/** Maps the host of a request to the host that actually served it */
+	private HashMap<String, String> origins;
+	
+	/** Elapsed realtime until which a host does not want to see any request */
+	private HashMap<String, Long> blockedHosts;
+	
+	private int maxRequestsPerHost;
+	
+	private LinkedList<Entry<T>> queue;
+	
+	private HashMap<T, Entry<T>> activeEntries;
+	
+	private HashMap<String, Integer> activeRequests;
+	
+	private boolean cancelled;
+	
+	/** While open, take() waits for new items instead of returning null on an empty queue */
+	private boolean open;
+	
+	/** The skipped items and the time in milliseconds since 1970 until which their host is blocked */
+	private HashMap<T, Long> skippedItems;
+	
+	public HostScheduler(int maxRequestsPerHost) {
+		this.maxRequestsPerHost = maxRequestsPerHost;
+		queue = new LinkedList<Entry<T>>();
+		activeEntries = new HashMap<T, Entry<T>>();
+		activeRequests = new HashMap<String, Integer>();
+		skippedItems = new HashMap<T, Long>();
+		origins = new HashMap<String, String>();
+		blockedHosts = new HashMap<String, Long>();
+	}
+	
+	public synchronized void add(T item, String host) {
+		add(item, host, 0);
+	}
+	
+	/**
+	 * @param notBefore the elapsed realtime before which the item is not handed out
+	 */
+	public synchronized void add(T item, String host, long notBefore) {
+		Entry<T> entry = new Entry<T>(item, host);
+		
+		entry.notBefore = notBefore;
+		queue.add(entry);
+		notifyAll();
+	}
+	
+	public synchronized int size() {
+		return queue.size();
+	}
+	
+	public synchronized void setOpen(boolean open) {
+		this.open = open;
+		notifyAll();
+	}
+	
+	/**
+	 * Returns the next item whose host can take another request and waits if
+	 * there is none; returns null if the queue is empty and not open or if the
+	 * scheduler is cancelled.
+	 * Every returned item has to be given back via release(..).
+	 */
+	public synchronized T take() {
+		while (!cancelled && (open || !queue.isEmpty())) {
+			long now = SystemClock.elapsedRealtime();
+			
+			long waitTime = 0;
+			
+			for (Iterator<Entry<T>> iterator = queue.iterator(); iterator.hasNext(); ) {
+				Entry<T> entry = iterator.next();
+				
+				String host = getOrigin(entry.requestHost);
+				
+				long readyTime = Math.max(entry.notBefore, getBlockedUntil(host));
+				
+				if (readyTime - now > MAX_RETRYDELAY) {
+					iterator.remove(); // we do not wait that long
+					skippedItems.put(entry.item, System.currentTimeMillis() + readyTime - now);
+				} else if (readyTime > now) {
+					waitTime = waitTime == 0 ? readyTime - now : Math.min(waitTime, readyTime - now);
+				} else if (getActiveRequests(host) < maxRequestsPerHost) {
+					iterator.remove();
+					entry.host = host;
+					activeEntries.put(entry.item, entry);
+					addActiveRequests(host, 1);
+					return entry.item;
+				}
+			}
+			if (open || !queue.isEmpty()) {
+				try {
+					wait(waitTime); // a release(..) or add(..) wakes us up earlier
+				} catch (InterruptedException e) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Counts the item against the host that really serves it from now on; the
+	 * mapping is remembered such that the queued items of the same host are counted
+	 * against the right host as well.
+	 */
+	public synchronized void setHost(T item, String host) {
+		Entry<T> entry = activeEntries.get(item);
+		
+		if (entry != null && host != null && !host.equals(entry.host)) {
+			addActiveRequests(entry.host, -1);
+			addActiveRequests(host, 1);
+			entry.host = host;
+			putOrigin(entry.requestHost, host);
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Blocks the host of the item for the time given by the Retry-After value and queues
+	 * the item again on its release if the delay is short enough; returns false if the
+	 * item is given up. The item still has to be released.
+	 */
+	public synchronized boolean retryLater(T item, String retryAfter) {
+		Entry<T> entry = activeEntries.get(item);
+		
+		if (entry == null) {
+			return false;
+		}
+		
+		long delay = parseRetryAfter(retryAfter);
+		
+		long time = SystemClock.elapsedRealtime() + delay;
+		
+		block(entry.host, time);
+		if (delay <= MAX_RETRYDELAY && entry.retries < MAX_RETRIES) {
+			Entry<T> retryEntry = new Entry<T>(item, entry.requestHost);
+			
+			retryEntry.retries = entry.retries + 1;
+			retryEntry.notBefore = time;
+			entry.retryEntry = retryEntry; // queued on release, otherwise another worker could take it while this one still holds it
+			return true;
+		} else {
+			return false;
+		}
+	}
+	
+	public synchronized void release(T item) {
+		Entry<T> entry = activeEntries.remove(item);
+		
+		if (entry != null) {
+			addActiveRequests(entry.host, -1);
+			if (entry.retryEntry != null) {
+				queue.addFirst(entry.retryEntry);
+			}
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * @return the items that have been skipped because their host is blocked for too long,
+	 * mapped to the time in milliseconds since 1970 until which the host is blocked
+	 */
+	public synchronized HashMap<T, Long> getSkippedItems() {
+		return new HashMap<T, Long>(skippedItems);
+	}
+	
+	public synchronized void cancel() {
+		cancelled = true;
+		notifyAll();
+	}
+	
+	private int getActiveRequests(String host) {
+		Integer count = activeRequests.get(host);
+		
+		return count != null ? count : 0;
+	}
+	
+	private void addActiveRequests(String host, int delta) {
+		int count = getActiveRequests(host) + delta;
+		
+		if (count > 0) {
+			activeRequests.put(host, count);
+		} else {
+			activeRequests.remove(host);
+		}
+	}
+	
+	private String getOrigin(String host) {
+		String origin = origins.get(host);
+		
+		return origin != null ? origin : host;
+	}
+	
+	private void putOrigin(String host, String origin) {
+		if (host.equals(origin)) {
+			origins.remove(host);
+		} else {
+			origins.put(host, origin);
+		}
+	}
+	
+	private long getBlockedUntil(String host) {
+		Long time = blockedHosts.get(host);
+		
+		if (time == null) {
+			return 0;
+		} else if (time < SystemClock.elapsedRealtime()) {
+			blockedHosts.remove(host);
+			return 0;
+		} else {
+			return time;
+		}
+	}
+	
+	private void block(String host, long time) {
+		blockedHosts.put(host, Math.max(time, getBlockedUntil(host)));
+	}
+	
+	/**
+	 * The value is either given in seconds or as http date.
+	 */
+	private static long parseRetryAfter(String retryAfter) {
+		if (retryAfter != null) {
+			retryAfter = retryAfter.trim();
+			try {
+				return Math.max(0, Long.parseLong(retryAfter)*1000);
+			} catch (NumberFormatException e) {
+				
+			}
+			
+			long date = DateParser.parse(retryAfter);
+			
+			if (date != DateParser.NONE) {
+				return Math.max(0, date - System.currentTimeMillis());
+			}
+		}
+		return DEFAULT_RETRYDELAY;
+	}
+	
+	private static class Entry<T> {
+		T item;
+		
+		/** The host of the original request */
+		String requestHost;
+		
+		/** The host the item is counted against */
+		String host;
+		
+		long notBefore;
+		
+		int retries;
+		
+		/** The entry that is queued once this one is released */
+		Entry<T> retryEntry;
+		
+		public Entry(T item, String requestHost) {
+			this.item = item;
+			this.requestHost = requestHost;
+		}
+	}
+	
+}
@@ -0,0 +1,312 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Reads the head of a html page in one pass and collects the
+ * feed and the icon that are announced in its link tags. Reading
+ * stops at the body or as soon as both links are known.
+ */
+public class HtmlHeadParser {
+	/** Pages without a body tag are not read forever */
+	private static final int MAX_LENGTH = 131072;
+	
+	private static final String TAG_LINK = "link";
+	
+	private static final String TAG_BASE = "base";
+	
+	private static final String TAG_BODY = "body";
+	
+	private static final String TAG_SCRIPT = "script";
+	
+	private static final String TAG_STYLE = "style";
+	
+	private static final String COMMENT = "!--";
+	
+	private static final String COMMENT_END = "-->";
+	
+	private static final String ATTRIBUTE_REL = "rel";
+	
+	private static final String ATTRIBUTE_HREF = "href";
+	
+	private static final String ATTRIBUTE_TYPE = "type";
+	
+	private static final String REL_ALTERNATE = "alternate";
+	
+	private static final String REL_ICON = "icon";
+	
+	private static final String[] FEED_TYPES = {"rss", "atom", "xml"};
+	
+	private static final String AMP = "&amp;";
+	
+	private Reader reader;
+	
+	private int position;
+	
+	/** A char that has been read too far and is returned by the next read */
+	private int pushback;
+	
+	private URL baseUrl;
+	
+	private String feedUrl;
+	
+	private String untypedFeedUrl;
+	
+	private String iconUrl;
+	
+	private StringBuilder builder;
+	
+	public HtmlHeadParser(InputStream inputStream, String contentType, String url) throws IOException {
+		String charset = CharsetSniffer.getContentTypeCharset(contentType);
+		
+		Reader reader = null;
+		
+		if (charset != null) {
+			try {
+				reader = new InputStreamReader(inputStream, charset);
+			} catch (UnsupportedEncodingException e) {
+				
+			}
+		}
+		this.reader = reader != null ? reader : new InputStreamReader(inputStream);
+		pushback = -1;
+		builder = new StringBuilder();
+		try {
+			baseUrl = new URL(url);
+		} catch (MalformedURLException e) {
+			baseUrl = null;
+		}
+		parse();
+		if (feedUrl == null) {
+			feedUrl = untypedFeedUrl;
+		}
+	}
+	
+	/**
+	 * @return the absolute url of the first announced feed or null
+	 */
+	public String getFeedUrl() {
+		return feedUrl;
+	}
+	
+	/**
+	 * @return the absolute url of the first announced icon or null
+	 */
+	public String getIconUrl() {
+		return iconUrl;
+	}
+	
+	private void parse() throws IOException {
+		int c;
+		
+		while ((feedUrl == null || iconUrl == null) && (c = read()) != -1) {
+			if (c == '<') {
+				String name = readName();
+				
+				if (COMMENT.equals(name)) {
+					skipTo(COMMENT_END);
+				} else if (TAG_BODY.equals(name)) {
+					return;
+				} else if (TAG_LINK.equals(name) || TAG_BASE.equals(name)) {
+					HashMap<String, String> attributes = readAttributes();
+					
+					if (TAG_BASE.equals(name)) {
+						String href = attributes.get(ATTRIBUTE_HREF);
+						
+						if (href != null) {
+							String url = resolve(href);
+							
+							if (url != null) {
+								baseUrl = new URL(url);
+							}
+						}
+					} else {
+						handleLink(attributes);
+					}
+				} else if (TAG_SCRIPT.equals(name) || TAG_STYLE.equals(name)) {
+					readAttributes();
+					skipTo(new StringBuilder("</").append(name).toString());
+				} else if (name.length() > 0) {
+					readAttributes(); // this skips the tag with respect to quoted '>'
+				}
+			}
+		}
+	}
+	
+	private void handleLink(HashMap<String, String> attributes) {
+		String rel = attributes.get(ATTRIBUTE_REL);
+		
+		String href = attributes.get(ATTRIBUTE_HREF);
+		
+		if (rel == null || href == null) {
+			return;
+		}
+		
+		String[] rels = rel.toLowerCase(Locale.US).split("\\s+");
+		
+		for (String token : rels) {
+			if (REL_ALTERNATE.equals(token) && feedUrl == null) {
+				String type = attributes.get(ATTRIBUTE_TYPE);
+				
+				if (type == null) {
+					if (untypedFeedUrl == null) {
+						untypedFeedUrl = resolve(href);
+					}
+				} else {
+					type = type.toLowerCase(Locale.US);
+					for (String feedType : FEED_TYPES) {
+						if (type.indexOf(feedType) > -1) {
+							feedUrl = resolve(href);
+							break;
+						}
+					}
+				}
+			} else if (REL_ICON.equals(token) && iconUrl == null) {
+				iconUrl = resolve(href);
+			}
+		}
+	}
+	
+	private String resolve(String href) {
+		href = href.trim().replace(AMP, "&");
+		try {
+			return (baseUrl != null ? new URL(baseUrl, href) : new URL(href)).toString();
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+	
+	private int read() throws IOException {
+		if (pushback != -1) {
+			int c = pushback;
+			
+			pushback = -1;
+			return c;
+		} else if (position++ > MAX_LENGTH) {
+			return -1;
+		} else {
+			return reader.read();
+		}
+	}
+	
+	/**
+	 * Reads a tag name in lower case; the reader stays behind the name.
+	 */
+	private String readName() throws IOException {
+		builder.setLength(0);
+		
+		int c;
+		
+		while ((c = read()) != -1 && ((c > ' ' && c != '>' && c != '/') || (c == '/' && builder.length() == 0))) {
+			builder.append(Character.toLowerCase((char) c));
+			if (builder.length() == 3 && COMMENT.equals(builder.toString())) {
+				return COMMENT;
+			}
+		}
+		pushback = c; // the terminating char belongs to the attributes
+		return builder.toString();
+	}
+	
+	/**
+	 * Reads the attributes up to and including the closing '>' of the tag.
+	 */
+	private HashMap<String, String> readAttributes() throws IOException {
+		HashMap<String, String> attributes = new HashMap<String, String>();
+		
+		int c = read();
+		
+		while (c != -1 && c != '>') {
+			if (c <= ' ' || c == '/') {
+				c = read();
+				continue;
+			}
+			builder.setLength(0);
+			while (c != -1 && c > ' ' && c != '=' && c != '>') {
+				builder.append(Character.toLowerCase((char) c));
+				c = read();
+			}
+			
+			String name = builder.toString();
+			
+			while (c != -1 && c <= ' ') {
+				c = read();
+			}
+			if (c == '=') {
+				c = read();
+				while (c != -1 && c <= ' ') {
+					c = read();
+				}
+				builder.setLength(0);
+				if (c == '"' || c == '\'') {
+					int quote = c;
+					
+					while ((c = read()) != -1 && c != quote) {
+						builder.append((char) c);
+					}
+					c = read();
+				} else {
+					while (c != -1 && c > ' ' && c != '>') {
+						builder.append((char) c);
+						c = read();
+					}
+				}
+				if (!attributes.containsKey(name)) {
+					attributes.put(name, builder.toString());
+				}
+			} else if (name.length() > 0) {
+				attributes.put(name, null);
+			}
+		}
+		return attributes;
+	}
+	
+	private void skipTo(String end) throws IOException {
+		int matched = 0;
+		
+		int length = end.length();
+		
+		int c;
+		
+		while (matched < length && (c = read()) != -1) {
+			if (Character.toLowerCase((char) c) == end.charAt(matched)) {
+				matched++;
+			} else {
+				matched = Character.toLowerCase((char) c) == end.charAt(0) ? 1 : 0;
+			}
+		}
+	}
+	
+}
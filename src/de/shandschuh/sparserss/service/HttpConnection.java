@@ -1,7 +1,7 @@
 /**
  * Sparse rss
  *
- * Copyright (c) 2012 Stefan Handschuh
+ * Copyright (c) 2010-2013 Stefan Handschuh
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -23,37 +23,43 @@
  *
  */
 
-package de.shandschuh.sparserss.handler;
+package de.shandschuh.sparserss.service;
 
-import java.io.File;
-import java.io.FilenameFilter;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 
-import de.shandschuh.sparserss.provider.FeedDataContentProvider;
-
-public class PictureFilenameFilter implements FilenameFilter {
-	private static final String REGEX = "__[^\\.]*\\.[A-Za-z]*";
+/**
+ * A request opened by a {@link HttpTransport}. Its url is the one after all
+ * redirects. It has to be given back via release() when it is no longer used,
+ * such that the transport may reuse the underlying connection.
+ */
+public interface HttpConnection {
+	URL getURL();
 	
-	private Pattern pattern;
+	int getResponseCode() throws IOException;
+	
+	String getResponseMessage() throws IOException;
+	
+	String getHeaderField(String key);
+	
+	String getContentType();
+	
+	int getContentLength();
+	
+	/**
+	 * Returns the response body, unpacked if it is compressed.
+	 */
+	InputStream getInputStream() throws IOException;
+	
+	/**
+	 * @param log gets the bytes of the body and the time spent waiting for them, may be null
+	 */
+	InputStream getInputStream(FetchLog log) throws IOException;
+	
+	/**
+	 * Ends the request; the connection must not be used afterwards.
+	 */
+	void release();
 	
-	public PictureFilenameFilter(String entryId) {
-		setEntryId(entryId);
-	}
-
-	public PictureFilenameFilter() {
-
-	}
-
-	public void setEntryId(String entryId) {
-		pattern = Pattern.compile(entryId+REGEX);
-	}
-
-	public boolean accept(File dir, String filename) {
-		if (dir != null && dir.equals(FeedDataContentProvider.IMAGEFOLDER_FILE)) { // this should be always true but lets check it anyway
-			return pattern.matcher(filename).find();
-		} else {
-			return false;
-		}
-	}
-
 }
@@ -0,0 +1,52 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.service;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.URL;
+
+/**
+ * Performs all http requests of the app, for feeds, icons and images alike. The
+ * transport carries the proxy, the user-agent, the timeouts and the redirect policy;
+ * credentials are taken from the user info of the url.
+ */
+public interface HttpTransport {
+	void setProxy(Proxy proxy);
+	
+	HttpConnection open(URL url, boolean imposeUseragent, boolean followHttpHttpsRedirects) throws IOException;
+	
+	HttpConnection open(URL url, boolean imposeUseragent, boolean followHttpHttpsRedirects, FetchLog log) throws IOException;
+	
+	/**
+	 * The etag and lastModified values are sent as validators such that the server may
+	 * answer with 304 (not modified) if there is nothing new; both may be null.
+	 * 
+	 * @param log gets the connect time and the time until the response headers, may be null
+	 */
+	HttpConnection open(URL url, boolean imposeUseragent, boolean followHttpHttpsRedirects, String etag, String lastModified, FetchLog log) throws IOException;
+	
+}
@@ -0,0 +1,183 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.service;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.BitmapFactory;
+import de.shandschuh.sparserss.Strings;
+import de.shandschuh.sparserss.provider.FeedData;
+
+/**
+ * Looks up the icons of hosts next to the feed refresh. Every host is looked
+ * up at most once at a time, known icons are not fetched again and failed
+ * lookups are only repeated after some time.
+ */
+public class IconFetcher {
+	/** Failed lookups are not repeated within this time */
+	private static final long NEGATIVE_TTL = 86400000;
+	
+	private static final int THREADCOUNT = 2;
+	
+	private static final String[] PROJECTION = new String[] {FeedData.IconColumns.HOST, FeedData.IconColumns.DATA+Strings.DB_ISNULL, FeedData.IconColumns.FETCHDATE};
+	
+	private static final String ICONHOST_SELECTION = FeedData.FeedColumns.ICONHOST+Strings.DB_ARG;
+	
+	private Context context;
+	
+	private HttpTransport transport;
+	
+	private ExecutorService executor;
+	
+	/** The hosts that have an icon, a recently failed lookup or a pending lookup */
+	private HashSet<String> hosts;
+	
+	public IconFetcher(Context context, HttpTransport transport) {
+		this.context = context;
+		this.transport = transport;
+		executor = Executors.newFixedThreadPool(THREADCOUNT);
+		hosts = new HashSet<String>();
+		
+		Cursor cursor = context.getContentResolver().query(FeedData.IconColumns.CONTENT_URI, PROJECTION, null, null, null);
+		
+		long negativeBorder = System.currentTimeMillis() - NEGATIVE_TTL;
+		
+		while (cursor.moveToNext()) {
+			if (cursor.getInt(1) == 0 || cursor.getLong(2) > negativeBorder) {
+				hosts.add(cursor.getString(0));
+			}
+		}
+		cursor.close();
+	}
+	
+	/**
+	 * Queues the lookup of the icon of the given host unless it is known already.
+	 * 
+	 * @param iconUrl the icon that is announced by the feed's page or null
+	 */
+	public void fetch(final String host, final String protocol, final String iconUrl, final boolean imposeUserAgent, final boolean followHttpHttpsRedirects) {
+		synchronized (hosts) {
+			if (!hosts.add(host)) {
+				return;
+			}
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					storeIcon(host, fetchIcon(host, protocol, iconUrl, imposeUserAgent, followHttpHttpsRedirects));
+				}
+			});
+		} catch (Exception e) {
+			// we are shut down already
+		}
+	}
+	
+	/**
+	 * Waits for the queued lookups, but not longer than the given time.
+	 */
+	public void shutdown(long timeout) {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			
+		}
+	}
+	
+	public void cancel() {
+		executor.shutdownNow();
+	}
+	
+	private byte[] fetchIcon(String host, String protocol, String iconUrl, boolean imposeUserAgent, boolean followHttpHttpsRedirects) {
+		String baseUrl = new StringBuilder(protocol).append(Strings.PROTOCOL_SEPARATOR).append(host).toString();
+		
+		try {
+			if (iconUrl == null) {
+				HttpConnection connection = transport.open(new URL(baseUrl), imposeUserAgent, followHttpHttpsRedirects);
+				
+				try {
+					iconUrl = new HtmlHeadParser(connection.getInputStream(), connection.getContentType(), connection.getURL().toString()).getIconUrl();
+				} catch (Exception e) {
+					
+				} finally {
+					connection.release();
+				}
+				if (iconUrl == null) {
+					iconUrl = new StringBuilder(baseUrl).append(Strings.FILE_FAVICON).toString();
+				}
+			}
+			
+			HttpConnection connection = transport.open(new URL(iconUrl), imposeUserAgent, followHttpHttpsRedirects);
+			
+			try {
+				if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+					byte[] iconBytes = FetcherService.getBytes(connection.getInputStream());
+					
+					BitmapFactory.Options options = new BitmapFactory.Options();
+					
+					options.inJustDecodeBounds = true;
+					BitmapFactory.decodeByteArray(iconBytes, 0, iconBytes.length, options);
+					if (options.outWidth > 0 && options.outHeight > 0) { // error pages are no icons
+						return iconBytes;
+					}
+				}
+			} finally {
+				connection.release();
+			}
+		} catch (Exception e) {
+			
+		}
+		return null;
+	}
+	
+	private void storeIcon(String host, byte[] iconBytes) {
+		ContentValues values = new ContentValues();
+		
+		values.put(FeedData.IconColumns.HOST, host);
+		if (iconBytes != null) {
+			values.put(FeedData.IconColumns.DATA, iconBytes);
+		} else {
+			values.putNull(FeedData.IconColumns.DATA);
+		}
+		values.put(FeedData.IconColumns.FETCHDATE, System.currentTimeMillis());
+		context.getContentResolver().insert(FeedData.IconColumns.CONTENT_URI, values);
+		if (iconBytes != null) {
+			/* the feeds of this host do not need their own copy anymore */
+			values.clear();
+			values.putNull(FeedData.FeedColumns.ICON);
+			context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI, values, ICONHOST_SELECTION, new String[] {host});
+		}
+	}
+	
+}
@@ -0,0 +1,387 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import de.shandschuh.sparserss.Strings;
+import de.shandschuh.sparserss.provider.FeedData;
+import de.shandschuh.sparserss.provider.FeedDataContentProvider;
+
+/**
+ * Downloads the images of entries next to the parsing. The parser only queues
+ * the images of an entry, such that the entry is visible before its images
+ * are stored. An image is only downloaded if it is not stored yet and it is
+ * stored in a file named after the hash of its content, so equal images of
+ * different urls share the file. Images may be downscaled and recompressed
+ * before they are stored; their file name stays the hash of the original
+ * content.
+ */
+public class ImageDownloader {
+	private static final int MAX_REQUESTS_PER_HOST = 2;
+	
+	private static final int MAX_RETRIES = 2;
+	
+	/** The pause before the first retry of a failed download, it doubles with every further retry */
+	private static final long MIN_RETRYDELAY = 5000;
+	
+	private static final int HTTP_TOOMANYREQUESTS = 429;
+	
+	private static final String KEY_RETRYAFTER = "Retry-After";
+	
+	private static final String TEMPFILE_SUFFIX = ".part";
+	
+	private static final int DEFAULT_IMAGEQUALITY = 85;
+	
+	private static final String SHRINKFILE_SUFFIX = ".small";
+	
+	private static final String MIMETYPE_GIF = "image/gif";
+	
+	/** At most this many of the images that are still missing are queued again per refresh, newest first */
+	private static final int MAX_MISSINGIMAGES = 64;
+	
+	private static final String[] PROJECTION_FILE = new String[] {FeedData.ImageColumns.FILE};
+	
+	private static final String[] PROJECTION_URL = new String[] {FeedData.ImageColumns.URL};
+	
+	private static final String MISSING_SELECTION = new StringBuilder(FeedData.ImageColumns.FILE).append(Strings.DB_ISNULL).append(Strings.DB_AND).append(FeedData.ImageColumns.URL).append(" IS NOT NULL").toString();
+	
+	private static final String MISSING_ORDER = new StringBuilder(FeedData.ImageColumns._ID).append(" DESC LIMIT ").append(MAX_MISSINGIMAGES).toString();
+	
+	private static final String URLHASH_SELECTION = FeedData.ImageColumns.URLHASH+Strings.DB_ARG;
+	
+	private static final String FILE_SELECTION = FeedData.ImageColumns.FILE+Strings.DB_ARG;
+	
+	private ContentResolver contentResolver;
+	
+	private HttpTransport transport;
+	
+	private HostScheduler<ImageJob> scheduler;
+	
+	private ExecutorService executor;
+	
+	/** The urls that are queued or downloaded right now */
+	private HashSet<String> pendingUrls;
+	
+	/** The maximum width or height of a stored image, 0 keeps the dimensions */
+	private int maxImageEdge;
+	
+	/** The jpeg quality of recompressed images, 0 keeps the data as long as the dimensions fit */
+	private int imageQuality;
+	
+	public ImageDownloader(Context context, HttpTransport transport, int threadCount, int maxImageEdge, int imageQuality) {
+		contentResolver = context.getContentResolver();
+		this.maxImageEdge = maxImageEdge;
+		this.imageQuality = imageQuality;
+		this.transport = transport;
+		pendingUrls = new HashSet<String>();
+		scheduler = new HostScheduler<ImageJob>(MAX_REQUESTS_PER_HOST);
+		scheduler.setOpen(true);
+		executor = Executors.newFixedThreadPool(threadCount);
+		for (int n = 0; n < threadCount; n++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					ImageJob job = null;
+					
+					while ((job = scheduler.take()) != null) {
+						boolean requeued = false;
+						
+						try {
+							requeued = download(job);
+						} finally {
+							scheduler.release(job);
+							if (!requeued) {
+								synchronized (pendingUrls) {
+									pendingUrls.remove(job.url);
+								}
+							}
+						}
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Queues the download of the image unless it is queued already. The image has to
+	 * be referenced by an entry before, otherwise it is not downloaded.
+	 */
+	public void enqueue(String url) {
+		synchronized (pendingUrls) {
+			if (!pendingUrls.add(url)) {
+				return;
+			}
+		}
+		enqueue(new ImageJob(url), 0);
+	}
+	
+	/**
+	 * Queues the images that are referenced by entries but have not been stored
+	 * by an earlier refresh, e.g. because it has ended or their retries have failed.
+	 */
+	public void enqueueMissing() {
+		Cursor cursor = contentResolver.query(FeedData.ImageColumns.CONTENT_URI, PROJECTION_URL, MISSING_SELECTION, null, MISSING_ORDER);
+		
+		while (cursor.moveToNext()) {
+			enqueue(cursor.getString(0));
+		}
+		cursor.close();
+	}
+	
+	/**
+	 * Downloads the queued images, but does not wait longer than the given time.
+	 */
+	public void shutdown(long timeout) {
+		scheduler.setOpen(false);
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+				cancel();
+			}
+		} catch (InterruptedException e) {
+			cancel();
+		}
+	}
+	
+	public void cancel() {
+		scheduler.cancel();
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * @return true if the job has been queued again
+	 */
+	private boolean download(ImageJob job) {
+		String[] urlHashArgs = new String[] {FeedData.getUrlHash(job.url)};
+		
+		Cursor cursor = contentResolver.query(FeedData.ImageColumns.CONTENT_URI, PROJECTION_FILE, URLHASH_SELECTION, urlHashArgs, null);
+		
+		boolean needed = cursor.moveToFirst() && (cursor.isNull(0) || !new File(FeedDataContentProvider.IMAGEFOLDER_FILE, cursor.getString(0)).exists());
+		
+		cursor.close();
+		if (!needed) {
+			return false; // the image is stored already or no entry references it anymore
+		}
+		
+		HttpConnection connection = null;
+		
+		File tempFile = null;
+		
+		try {
+			connection = transport.open(new URL(job.url), false, false);
+			
+			int responseCode = connection.getResponseCode();
+			
+			if (responseCode == HTTP_TOOMANYREQUESTS || responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+				return scheduler.retryLater(job, connection.getHeaderField(KEY_RETRYAFTER));
+			} else if (responseCode != HttpURLConnection.HTTP_OK) {
+				return false; // retrying does not help here
+			}
+			tempFile = new File(FeedDataContentProvider.IMAGEFOLDER_FILE, new StringBuilder(urlHashArgs[0]).append(TEMPFILE_SUFFIX).toString());
+			
+			MessageDigest digest = MessageDigest.getInstance(FeedData.MD5);
+			
+			InputStream inputStream = connection.getInputStream();
+			
+			FileOutputStream outputStream = new FileOutputStream(tempFile);
+			
+			try {
+				byte[] buffer = new byte[4096];
+				
+				int n;
+				
+				while ((n = inputStream.read(buffer)) > 0) {
+					outputStream.write(buffer, 0, n);
+					digest.update(buffer, 0, n);
+				}
+			} finally {
+				outputStream.close();
+			}
+			
+			String fileName = FeedData.toHex(digest.digest());
+			
+			if (maxImageEdge > 0 || imageQuality > 0) {
+				shrink(tempFile);
+			}
+			
+			File file = new File(FeedDataContentProvider.IMAGEFOLDER_FILE, fileName);
+			
+			boolean created = false;
+			
+			if (!file.exists() && tempFile.renameTo(file)) { // the entry never shows half an image
+				tempFile = null;
+				created = true;
+			}
+			
+			ContentValues values = new ContentValues();
+			
+			values.put(FeedData.ImageColumns.FILE, fileName);
+			if (contentResolver.update(FeedData.ImageColumns.CONTENT_URI, values, URLHASH_SELECTION, urlHashArgs) == 0 && created) {
+				/* the referencing entries have been deleted during the download */
+				Cursor fileCursor = contentResolver.query(FeedData.ImageColumns.CONTENT_URI, PROJECTION_FILE, FILE_SELECTION, new String[] {fileName}, null);
+				
+				if (!fileCursor.moveToFirst()) {
+					file.delete();
+				}
+				fileCursor.close();
+			}
+		} catch (IOException e) {
+			if (job.retries < MAX_RETRIES) {
+				ImageJob retryJob = new ImageJob(job.url); // the failed job is still counted as active
+				
+				retryJob.retries = job.retries + 1;
+				enqueue(retryJob, SystemClock.elapsedRealtime() + (MIN_RETRYDELAY << job.retries));
+				return true;
+			}
+		} catch (Exception e) {
+			
+		} finally {
+			if (connection != null) {
+				connection.release();
+			}
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Replaces the image by a smaller copy if its dimensions exceed the maximum
+	 * edge or if recompressing saves space. Animated gifs are kept as they are.
+	 */
+	private void shrink(File file) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(file.getPath(), options);
+		if (options.outWidth <= 0 || options.outHeight <= 0 || MIMETYPE_GIF.equals(options.outMimeType)) {
+			return;
+		}
+		
+		int edge = Math.max(options.outWidth, options.outHeight);
+		
+		boolean scale = maxImageEdge > 0 && edge > maxImageEdge;
+		
+		if (!scale && imageQuality == 0) {
+			return;
+		}
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = 1;
+		if (scale) {
+			while (edge / (options.inSampleSize * 2) >= maxImageEdge) {
+				options.inSampleSize *= 2; // decoding a subsampled image needs only a fraction of the memory
+			}
+		}
+		
+		File shrinkFile = new File(file.getPath()+SHRINKFILE_SUFFIX);
+		
+		Bitmap bitmap = null;
+		
+		try {
+			bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+			if (bitmap == null) {
+				return;
+			}
+			
+			int width = bitmap.getWidth();
+			
+			int height = bitmap.getHeight();
+			
+			if (scale && Math.max(width, height) > maxImageEdge) {
+				float factor = (float) maxImageEdge / Math.max(width, height);
+				
+				Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * factor)), Math.max(1, Math.round(height * factor)), true);
+				
+				if (scaledBitmap != bitmap) {
+					bitmap.recycle();
+					bitmap = scaledBitmap;
+				}
+			}
+			
+			FileOutputStream outputStream = new FileOutputStream(shrinkFile);
+			
+			boolean compressed = false;
+			
+			try {
+				if (bitmap.hasAlpha()) {
+					compressed = bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+				} else {
+					compressed = bitmap.compress(Bitmap.CompressFormat.JPEG, imageQuality > 0 ? imageQuality : DEFAULT_IMAGEQUALITY, outputStream);
+				}
+			} finally {
+				outputStream.close();
+			}
+			if (compressed && shrinkFile.length() > 0 && shrinkFile.length() < file.length()) {
+				shrinkFile.renameTo(file); // replaces the original
+			}
+		} catch (OutOfMemoryError e) {
+			// the image is stored as it is
+		} catch (IOException e) {
+			
+		} finally {
+			if (bitmap != null) {
+				bitmap.recycle();
+			}
+			shrinkFile.delete();
+		}
+	}
+	
+	private void enqueue(ImageJob job, long notBefore) {
+		String host = Uri.parse(job.url).getHost();
+		
+		scheduler.add(job, host != null ? host : job.url, notBefore);
+	}
+	
+	private static class ImageJob {
+		String url;
+		
+		int retries;
+		
+		public ImageJob(String url) {
+			this.url = url;
+		}
+	}
+	
+}
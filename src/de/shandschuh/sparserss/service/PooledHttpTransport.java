@@ -0,0 +1,380 @@
+/**
+ * Sparse rss
+ *
+ * Copyright (c) 2010-2013 Stefan Handschuh
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package de.shandschuh.sparserss.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.os.Build;
+import android.os.SystemClock;
+import de.shandschuh.sparserss.BASE64;
+import de.shandschuh.sparserss.Strings;
+
+/**
+ * Opens all http connections such that the connections of the platform pool
+ * are kept alive and reused for following requests to the same host.
+ * 
+ * A connection only gets back into the pool if its response has been read
+ * completely, which release() takes care of.
+ */
+public class PooledHttpTransport implements HttpTransport {
+	private static final String KEY_USERAGENT = "User-agent";
+	
+	private static final String VALUE_USERAGENT = "Mozilla/5.0";
+	
+	private static final String KEY_IFNONEMATCH = "If-None-Match";
+	
+	private static final String KEY_IFMODIFIEDSINCE = "If-Modified-Since";
+	
+	private static final String KEY_CONNECTION = "connection";
+	
+	private static final String VALUE_CLOSE = "close";
+	
+	private static final String GZIP = "gzip";
+	
+	private static final String TLS = "TLS";
+	
+	private static final int DEFAULT_TIMEOUT = 30000;
+	
+	/** Idle connections are closed by the platform after this time (matches its default) */
+	private static final long KEEPALIVE_DURATION = 300000;
+	
+	private static final int MAX_IDLE_CONNECTIONS_PER_HOST = 5;
+	
+	/** Unread responses up to this size are drained such that the connection can be reused */
+	private static final int MAX_DRAIN_BYTES = 65536;
+	
+	/** The pool is broken before Froyo, see android issue 7786 */
+	private static final boolean POOLING_ENABLED;
+	
+	static {
+		int sdk = 3;
+		
+		try {
+			sdk = Build.VERSION.SDK_INT;
+		} catch (NoSuchFieldError e) {
+			// cupcake has no SDK_INT
+		}
+		POOLING_ENABLED = sdk >= 8;
+	}
+	
+	private Proxy proxy;
+	
+	/** A single factory such that all https connections share one session cache and can resume their tls sessions */
+	private SSLSocketFactory sslSocketFactory;
+	
+	public PooledHttpTransport() {
+		try {
+			SSLContext sslContext = SSLContext.getInstance(TLS);
+			
+			sslContext.init(null, null, null);
+			sslContext.getClientSessionContext().setSessionTimeout((int) (KEEPALIVE_DURATION/1000*12)); // tls sessions outlive the connections
+			sslSocketFactory = sslContext.getSocketFactory();
+		} catch (Exception e) {
+			sslSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+		}
+	}
+	
+	/**
+	 * Sets the keep-alive properties of the platform pool, which apply to all
+	 * connections of the process. This is called once before the first request.
+	 */
+	public static void configureKeepAlive() {
+		System.setProperty("http.keepAlive", Boolean.toString(POOLING_ENABLED));
+		if (POOLING_ENABLED) {
+			System.setProperty("http.maxConnections", Integer.toString(MAX_IDLE_CONNECTIONS_PER_HOST));
+			System.setProperty("http.keepAliveDuration", Long.toString(KEEPALIVE_DURATION));
+		}
+	}
+	
+	public void setProxy(Proxy proxy) {
+		this.proxy = proxy;
+	}
+	
+	public HttpConnection open(URL url, boolean imposeUseragent, boolean followHttpHttpsRedirects) throws IOException {
+		return new PooledConnection(open(url, imposeUseragent, followHttpHttpsRedirects, null, null, null, 0));
+	}
+	
+	public HttpConnection open(URL url, boolean imposeUseragent, boolean followHttpHttpsRedirects, FetchLog log) throws IOException {
+		return new PooledConnection(open(url, imposeUseragent, followHttpHttpsRedirects, null, null, log, 0));
+	}
+	
+	public HttpConnection open(URL url, boolean imposeUseragent, boolean followHttpHttpsRedirects, String etag, String lastModified, FetchLog log) throws IOException {
+		return new PooledConnection(open(url, imposeUseragent, followHttpHttpsRedirects, etag, lastModified, log, 0));
+	}
+	
+	private HttpURLConnection open(URL url, boolean imposeUseragent, boolean followHttpHttpsRedirects, String etag, String lastModified, FetchLog log, int cycle) throws IOException {
+		HttpURLConnection connection = proxy == null ? (HttpURLConnection) url.openConnection() : (HttpURLConnection) url.openConnection(proxy);
+		
+		if (connection instanceof HttpsURLConnection) {
+			((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+		}
+		connection.setDoInput(true);
+		connection.setDoOutput(false);
+		if (imposeUseragent) {
+			connection.setRequestProperty(KEY_USERAGENT, VALUE_USERAGENT); // some feeds need this to work properly
+		}
+		connection.setInstanceFollowRedirects(true);
+		connection.setConnectTimeout(DEFAULT_TIMEOUT);
+		connection.setReadTimeout(DEFAULT_TIMEOUT);
+		connection.setUseCaches(false);
+		
+		if (url.getUserInfo() != null) {
+			connection.setRequestProperty("Authorization", "Basic "+BASE64.encode(url.getUserInfo().getBytes()));
+		}
+		if (!POOLING_ENABLED) {
+			connection.setRequestProperty(KEY_CONNECTION, VALUE_CLOSE); // Workaround for android issue 7786
+		}
+		connection.setRequestProperty("accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+		if (etag != null) {
+			connection.setRequestProperty(KEY_IFNONEMATCH, etag);
+		}
+		if (lastModified != null) {
+			connection.setRequestProperty(KEY_IFMODIFIEDSINCE, lastModified);
+		}
+		long startTime = SystemClock.elapsedRealtime();
+		
+		connection.connect();
+		
+		long connectTime = SystemClock.elapsedRealtime();
+		
+		String location = connection.getHeaderField("Location");
+		
+		if (log != null) {
+			log.addConnectTime(connectTime - startTime);
+			log.addFirstByteTime(SystemClock.elapsedRealtime() - connectTime);
+		}
+		
+		if (location != null && (url.getProtocol().equals(Strings._HTTP) && location.startsWith(Strings.HTTPS) || url.getProtocol().equals(Strings._HTTPS) && location.startsWith(Strings.HTTP))) {
+			// if location != null, the system-automatic redirect has failed which indicates a protocol change
+			new PooledConnection(connection).release();
+			if (followHttpHttpsRedirects) {
+				if (cycle < 5) {
+					return open(new URL(location), imposeUseragent, followHttpHttpsRedirects, etag, lastModified, log, cycle+1);
+				} else {
+					throw new IOException("Too many redirects.");
+				}
+			} else {
+				throw new IOException("https<->http redirect - enable in settings");
+			}
+		}
+		return connection;
+	}
+	
+	/**
+	 * Keeps the body that has been handed out such that release() knows if the
+	 * connection can go back into the pool.
+	 */
+	private static class PooledConnection implements HttpConnection {
+		private HttpURLConnection connection;
+		
+		private ReleaseTrackingInputStream inputStream;
+		
+		public PooledConnection(HttpURLConnection connection) {
+			this.connection = connection;
+		}
+		
+		public URL getURL() {
+			return connection.getURL();
+		}
+		
+		public int getResponseCode() throws IOException {
+			return connection.getResponseCode();
+		}
+		
+		public String getResponseMessage() throws IOException {
+			return connection.getResponseMessage();
+		}
+		
+		public String getHeaderField(String key) {
+			return connection.getHeaderField(key);
+		}
+		
+		public String getContentType() {
+			return connection.getContentType();
+		}
+		
+		public int getContentLength() {
+			return connection.getContentLength();
+		}
+		
+		public InputStream getInputStream() throws IOException {
+			return getInputStream(null);
+		}
+		
+		/**
+		 * Returns the response body and unpacks it if it is gzip compressed
+		 * and not properly recognized.
+		 */
+		public InputStream getInputStream(FetchLog log) throws IOException {
+			InputStream rawInputStream = connection.getInputStream();
+			
+			inputStream = new ReleaseTrackingInputStream(rawInputStream, log);
+			if (GZIP.equals(connection.getContentEncoding()) && !(rawInputStream instanceof GZIPInputStream)) {
+				if (log != null) {
+					log.setCompressed(true);
+					return new UncompressedCountingInputStream(new GZIPInputStream(inputStream), log);
+				}
+				return new GZIPInputStream(inputStream);
+			} else {
+				return inputStream;
+			}
+		}
+		
+		/**
+		 * Gives the connection back to the pool if its response can be read to the end,
+		 * otherwise the connection gets closed.
+		 */
+		public void release() {
+			boolean reusable = false;
+			
+			if (POOLING_ENABLED) {
+				try {
+					if (inputStream != null && inputStream.closed) {
+						reusable = inputStream.finished; // the platform has already decided when the body got closed
+					} else {
+						InputStream rawInputStream = inputStream;
+						
+						if (rawInputStream == null) {
+							rawInputStream = connection.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream() : connection.getErrorStream();
+						}
+						if (rawInputStream != null && drain(rawInputStream)) {
+							rawInputStream.close();
+							reusable = true;
+						}
+					}
+				} catch (Exception e) {
+					
+				}
+			}
+			if (!reusable) {
+				connection.disconnect();
+			}
+		}
+	}
+	
+	private static boolean drain(InputStream inputStream) throws IOException {
+		byte[] buffer = new byte[4096];
+		
+		int remaining = MAX_DRAIN_BYTES;
+		
+		int n;
+		
+		while ((n = inputStream.read(buffer)) > -1) {
+			remaining -= n;
+			if (remaining < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Remembers if the body has been read to its end and if it has been closed by its
+	 * reader; a body that is closed before its end takes the connection out of the pool.
+	 */
+	private static class ReleaseTrackingInputStream extends FilterInputStream {
+		private boolean finished;
+		
+		private boolean closed;
+		
+		private FetchLog log;
+		
+		public ReleaseTrackingInputStream(InputStream inputStream, FetchLog log) {
+			super(inputStream);
+			this.log = log;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			long startTime = log != null ? System.nanoTime() : 0;
+			
+			int result = super.read();
+			
+			finished = result == -1;
+			if (log != null) {
+				log.addDownload(finished ? 0 : 1, System.nanoTime() - startTime);
+			}
+			return result;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			long startTime = log != null ? System.nanoTime() : 0;
+			
+			int result = super.read(buffer, offset, count);
+			
+			finished = result == -1;
+			if (log != null) {
+				log.addDownload(result, System.nanoTime() - startTime);
+			}
+			return result;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			super.close();
+		}
+	}
+	
+	private static class UncompressedCountingInputStream extends FilterInputStream {
+		private FetchLog log;
+		
+		public UncompressedCountingInputStream(InputStream inputStream, FetchLog log) {
+			super(inputStream);
+			this.log = log;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int result = super.read();
+			
+			if (result > -1) {
+				log.addUncompressedBytes(1);
+			}
+			return result;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int result = super.read(buffer, offset, count);
+			
+			log.addUncompressedBytes(result);
+			return result;
+		}
+	}
+	
+}
@@ -28,18 +28,27 @@ package de.shandschuh.sparserss.service;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.database.Cursor;
 import android.os.IBinder;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import de.shandschuh.sparserss.Strings;
+import de.shandschuh.sparserss.provider.FeedData;
 
 public class RefreshService extends Service {
 	private static final String SIXTYMINUTES = "3600000";
 	
+	private static final int MIN_REFRESHINTERVAL = 60000;
+	
+	private static final int INITIAL_DELAY = 10000;
+	
+	private static final String NEXTREFRESH = new StringBuilder("MIN(IFNULL(").append(FeedData.FeedColumns.NEXTREFRESH).append(",0))").toString(); // never refreshed feeds are due immediately
+	
 	private OnSharedPreferenceChangeListener listener = new OnSharedPreferenceChangeListener() {
 		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
 			if (Strings.SETTINGS_REFRESHINTERVAL.equals(key)) {
@@ -48,8 +57,6 @@ public class RefreshService extends Service {
 		}
 	};
 	
-	private Intent refreshBroadcastIntent;
-	
 	private AlarmManager alarmManager;
 	
 	private PendingIntent timerIntent;
@@ -81,7 +88,6 @@ public class RefreshService extends Service {
 			preferences = PreferenceManager.getDefaultSharedPreferences(this);
 		}
 		
-		refreshBroadcastIntent = new Intent(Strings.ACTION_REFRESHFEEDS).putExtra(Strings.SCHEDULED, true);
 		alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
 		preferences.registerOnSharedPreferenceChangeListener(listener);
 		restartTimer(true);
@@ -89,31 +95,72 @@ public class RefreshService extends Service {
 
 	private void restartTimer(boolean created) {
 		if (timerIntent == null) {
-			timerIntent = PendingIntent.getBroadcast(this, 0, refreshBroadcastIntent, 0);
+			timerIntent = getTimerIntent(this);
 		} else {
 			alarmManager.cancel(timerIntent);
 		}
 		
-		int time = 3600000;
-		
-		try {
-			time = Math.max(60000, Integer.parseInt(preferences.getString(Strings.SETTINGS_REFRESHINTERVAL, SIXTYMINUTES)));
-		} catch (Exception exception) {
-
-		}
+		long time = getRefreshInterval(preferences);
 		
-		long initialRefreshTime = SystemClock.elapsedRealtime() + 10000;
+		long initialRefreshTime = SystemClock.elapsedRealtime() + Math.max(INITIAL_DELAY, getNextRefreshDelay(this, time));
 		
 		if (created) {
 			long lastRefresh = preferences.getLong(Strings.PREFERENCE_LASTSCHEDULEDREFRESH, 0);
 			
 			if (lastRefresh > 0) {
 				// this indicates a service restart by the system
-				initialRefreshTime = Math.max(SystemClock.elapsedRealtime() + 10000, lastRefresh+time);
+				initialRefreshTime = Math.max(initialRefreshTime, lastRefresh+time);
 			}
 		}
 		
-		alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP, initialRefreshTime, time, timerIntent);
+		alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, initialRefreshTime, timerIntent);
+	}
+	
+	/**
+	 * @return the user's refresh interval which is the shortest interval any feed is refreshed with
+	 */
+	public static long getRefreshInterval(SharedPreferences preferences) {
+		long time = 3600000;
+		
+		try {
+			time = Math.max(MIN_REFRESHINTERVAL, Integer.parseInt(preferences.getString(Strings.SETTINGS_REFRESHINTERVAL, SIXTYMINUTES)));
+		} catch (Exception exception) {
+
+		}
+		return time;
+	}
+	
+	/**
+	 * Sets the alarm to the time the next feed is due. As the alarm is not repeating, this
+	 * has to be called after every scheduled refresh.
+	 * 
+	 * @param minDelay the minimum delay in milliseconds
+	 */
+	public static void scheduleNextRefresh(Context context, SharedPreferences preferences, long minDelay) {
+		if (preferences.getBoolean(Strings.SETTINGS_REFRESHENABLED, false)) {
+			AlarmManager alarmManager = (AlarmManager) context.getSystemService(ALARM_SERVICE);
+			
+			alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + Math.max(Math.max(minDelay, MIN_REFRESHINTERVAL), getNextRefreshDelay(context, getRefreshInterval(preferences))), getTimerIntent(context));
+		}
+	}
+	
+	private static PendingIntent getTimerIntent(Context context) {
+		// extras are not compared, so this is the same pending intent for every call
+		return PendingIntent.getBroadcast(context, 0, new Intent(Strings.ACTION_REFRESHFEEDS).putExtra(Strings.SCHEDULED, true), 0);
+	}
+	
+	private static long getNextRefreshDelay(Context context, long defaultDelay) {
+		Cursor cursor = context.getContentResolver().query(FeedData.FeedColumns.CONTENT_URI, new String[] {NEXTREFRESH}, null, null, null);
+		
+		long delay = defaultDelay;
+		
+		if (cursor != null) {
+			if (cursor.moveToFirst() && !cursor.isNull(0)) { // null means that there are no feeds at all
+				delay = Math.max(0, cursor.getLong(0) - System.currentTimeMillis());
+			}
+			cursor.close();
+		}
+		return delay;
 	}
 
 	@Override